@@ -18,6 +18,7 @@ import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -28,6 +29,7 @@ import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.TransportAddress;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.rest.RestRequest;
 import org.elasticsearch.tasks.Task;
 import org.elasticsearch.threadpool.ThreadPool;
@@ -35,13 +37,13 @@ import org.elasticsearch.transport.TransportRequest;
 
 import com.floragunn.searchguard.auditlog.AuditLog;
 import com.floragunn.searchguard.auditlog.impl.AuditMessage.Category;
-import com.floragunn.searchguard.support.Base64Helper;
 import com.floragunn.searchguard.support.ConfigConstants;
-import com.floragunn.searchguard.support.WildcardMatcher;
 import com.floragunn.searchguard.user.User;
 
 public abstract class AbstractAuditLog implements AuditLog {
 
+    private static final int MAX_CACHED_HEADERS = 1000;
+
     protected final Logger log = LogManager.getLogger(this.getClass());
     protected final ThreadPool threadPool;
     protected final IndexNameExpressionResolver resolver;
@@ -50,20 +52,37 @@ public abstract class AbstractAuditLog implements AuditLog {
     protected final boolean restAuditingEnabled;
     protected final boolean transportAuditingEnabled;
     protected final boolean resolveBulkRequests;
+    private final RequestResolver.BulkAggregation bulkAggregation;
     
     protected final boolean logRequestBody;
+    private final long maxRequestBodyBytes;
+    private final EnumSet<Category> requestBodyDisabledCategories = EnumSet.noneOf(Category.class);
     protected final boolean resolveIndices;
 
     private List<String> ignoreAuditUsers;
     private final List<String> ignoreAuditRequests;
+    private final CompiledWildcardMatcher ignoredUsers;
+    private final CompiledWildcardMatcher ignoredRequests;
     private final List<String> disabledRestCategories;
     private final List<String> disabledTransportCategories;
+    // categories which are audited per layer, checked before anything else is done
+    private final EnumSet<Category> enabledRestCategories;
+    private final EnumSet<Category> enabledTransportCategories;
     private final List<String> defaultDisabledCategories = 
             Arrays.asList(new String[]{Category.AUTHENTICATED.toString(), Category.GRANTED_PRIVILEGES.toString()});
     private final List<String> defaultIgnoredUsers = 
             Arrays.asList(new String[]{"kibanaserver"});
     
     private final String searchguardIndex;
+    private final LocalNodeMetadata.Cache localNode;
+    private final ConcreteIndexResolver indexResolver;
+    private final SamplingPolicy samplingPolicy;
+    private final HeaderFilter headerFilter;
+    // requests from other nodes carry user and remote address as serialized headers, mostly the same few ones
+    private final DeserializedHeaderCache<String> userHeaders = 
+            new DeserializedHeaderCache<String>(MAX_CACHED_HEADERS, user -> ((User) user).getName());
+    private final DeserializedHeaderCache<TransportAddress> remoteAddressHeaders = 
+            new DeserializedHeaderCache<TransportAddress>(MAX_CACHED_HEADERS, address -> new TransportAddress((InetSocketAddress) address));
 
     protected AbstractAuditLog(Settings settings, final ThreadPool threadPool, final IndexNameExpressionResolver resolver, final ClusterService clusterService) {
         super();
@@ -72,11 +91,23 @@ public abstract class AbstractAuditLog implements AuditLog {
         this.settings = settings;
         this.resolver = resolver;
         this.clusterService = clusterService;
+        this.indexResolver = new ConcreteIndexResolver(resolver, clusterService);
+        
+        this.localNode = clusterService == null ? null : new LocalNodeMetadata.Cache(clusterService);
         
         this.searchguardIndex = settings.get(ConfigConstants.SEARCHGUARD_CONFIG_INDEX_NAME, ConfigConstants.SG_DEFAULT_CONFIG_INDEX);
 
         resolveBulkRequests = settings.getAsBoolean(ConfigConstants.SEARCHGUARD_AUDIT_RESOLVE_BULK_REQUESTS, false);
         
+        if (resolveBulkRequests && settings.getAsBoolean("searchguard.audit.config.bulk_requests.aggregate", false)) {
+            final int maxItems = settings.getAsInt("searchguard.audit.config.bulk_requests.max_items", -1);
+            final boolean sourceDigests = settings.getAsBoolean("searchguard.audit.config.bulk_requests.source_digests", false);
+            bulkAggregation = new RequestResolver.BulkAggregation(maxItems, sourceDigests);
+            log.info("Bulk requests are audited with one message per shard, max items: {}, source digests: {}", maxItems, sourceDigests);
+        } else {
+            bulkAggregation = null;
+        }
+        
         restAuditingEnabled = settings.getAsBoolean(ConfigConstants.SEARCHGUARD_AUDIT_ENABLE_REST, true);
         transportAuditingEnabled = settings.getAsBoolean(ConfigConstants.SEARCHGUARD_AUDIT_ENABLE_TRANSPORT, true);
         
@@ -103,6 +134,19 @@ public abstract class AbstractAuditLog implements AuditLog {
         }
         
         logRequestBody = settings.getAsBoolean(ConfigConstants.SEARCHGUARD_AUDIT_LOG_REQUEST_BODY, true);
+        maxRequestBodyBytes = settings.getAsBytesSize("searchguard.audit.config.request_body.max_bytes", new ByteSizeValue(-1)).getBytes();
+        
+        for (String category : settings.getAsList("searchguard.audit.config.request_body.disabled_categories", Collections.emptyList())) {
+            try {
+                requestBodyDisabledCategories.add(Category.valueOf(category.toUpperCase()));
+            } catch(IllegalArgumentException e) {
+                log.error("Unkown category {}, please check searchguard.audit.config.request_body.disabled_categories settings", category);
+            }
+        }
+        
+        if (logRequestBody && (maxRequestBodyBytes >= 0 || !requestBodyDisabledCategories.isEmpty())) {
+            log.info("Request bodies are logged up to {} bytes, except for categories {}", maxRequestBodyBytes, requestBodyDisabledCategories);
+        }
         resolveIndices = settings.getAsBoolean(ConfigConstants.SEARCHGUARD_AUDIT_RESOLVE_INDICES, true);
         
         ignoreAuditUsers = new ArrayList<>(settings.getAsList(ConfigConstants.SEARCHGUARD_AUDIT_IGNORE_USERS, defaultIgnoredUsers));
@@ -120,6 +164,11 @@ public abstract class AbstractAuditLog implements AuditLog {
             log.info("Configured Requests to ignore: {}", ignoreAuditRequests);
         }
         
+        ignoredUsers = CompiledWildcardMatcher.compile(ignoreAuditUsers);
+        ignoredRequests = CompiledWildcardMatcher.compile(ignoreAuditRequests);
+        samplingPolicy = SamplingPolicy.of(settings);
+        headerFilter = HeaderFilter.of(settings);
+        
         // check if some categories are invalid
         for (String event : disabledRestCategories) {
         	try {
@@ -137,20 +186,46 @@ public abstract class AbstractAuditLog implements AuditLog {
                 log.error("Unkown category {}, please check searchguard.audit.config.disabled_categories settings", event);             
             }
         }
+        
+        enabledRestCategories = enabledCategories(restAuditingEnabled, disabledRestCategories);
+        enabledTransportCategories = enabledCategories(transportAuditingEnabled, disabledTransportCategories);
+    }
+    
+    private static EnumSet<Category> enabledCategories(final boolean layerEnabled, final List<String> disabledCategories) {
+        // these are audited even if auditing is disabled for the layer
+        final EnumSet<Category> enabled = layerEnabled ? EnumSet.allOf(Category.class) 
+                : EnumSet.of(Category.FAILED_LOGIN, Category.MISSING_PRIVILEGES, Category.SG_INDEX_ATTEMPT);
+        
+        for (String category : disabledCategories) {
+            try {
+                enabled.remove(Category.valueOf(category));
+            } catch(IllegalArgumentException e) {
+                // already logged
+            }
+        }
+        
+        return enabled;
     }
     
     @Override
     public void logFailedLogin(String effectiveUser, boolean sgadmin, String initiatingUser, TransportRequest request, Task task) {
+        if(!enabledTransportCategories.contains(Category.FAILED_LOGIN)) {
+            return;
+        }
+        
         final String action = null;
         
-        if(!checkTransportFilter(Category.FAILED_LOGIN, action, effectiveUser, request)) {
+        final double samplingRate = checkTransportFilter(Category.FAILED_LOGIN, action, effectiveUser, request);
+        
+        if(samplingRate == SamplingPolicy.NOT_AUDITED) {
             return;
         }
         
         final TransportAddress remoteAddress = getRemoteAddress();
-        final List<AuditMessage> msgs = RequestResolver.resolve(Category.FAILED_LOGIN, getOrigin(), action, null, effectiveUser, sgadmin, initiatingUser, remoteAddress, request, getThreadContextHeaders(), task, resolver, clusterService, settings, logRequestBody, resolveIndices, resolveBulkRequests, searchguardIndex, null);
+        final List<AuditMessage> msgs = RequestResolver.resolve(Category.FAILED_LOGIN, getOrigin(), action, null, effectiveUser, sgadmin, initiatingUser, remoteAddress, request, getThreadContextHeaders(), task, indexResolver, localNode(), settings, logRequestBody(Category.FAILED_LOGIN), maxRequestBodyBytes, resolveIndices, resolveBulkRequests, bulkAggregation, searchguardIndex, null);
         
         for(AuditMessage msg: msgs) {
+            msg.addSamplingRate(samplingRate);
             save(msg);
         }
     }
@@ -158,21 +233,26 @@ public abstract class AbstractAuditLog implements AuditLog {
 
     @Override
     public void logFailedLogin(String effectiveUser, boolean sgadmin, String initiatingUser, RestRequest request) {
+        if(!enabledRestCategories.contains(Category.FAILED_LOGIN)) {
+            return;
+        }
         
-        if(!checkRestFilter(Category.FAILED_LOGIN, effectiveUser, request)) {
+        final double samplingRate = checkRestFilter(Category.FAILED_LOGIN, effectiveUser, request);
+        
+        if(samplingRate == SamplingPolicy.NOT_AUDITED) {
             return;
         }
         
-        AuditMessage msg = new AuditMessage(Category.FAILED_LOGIN, clusterService, getOrigin(), Origin.REST);
+        AuditMessage msg = new AuditMessage(Category.FAILED_LOGIN, localNode(), getOrigin(), Origin.REST);
         TransportAddress remoteAddress = getRemoteAddress();
         msg.addRemoteAddress(remoteAddress);
-        if(request != null && logRequestBody && request.hasContentOrSourceParam()) {
-            msg.addBody(request.contentOrSourceParam());
+        if(request != null && logRequestBody(msg.getCategory()) && request.hasContentOrSourceParam()) {
+            msg.addBody(request.contentOrSourceParam(), maxRequestBodyBytes);
         }
         
         if(request != null) {
             msg.addPath(request.path());
-            msg.addRestHeaders(request.getHeaders());
+            msg.addRestHeaders(request.getHeaders(), headerFilter);
             msg.addRestParams(request.params());
         }
         
@@ -180,198 +260,290 @@ public abstract class AbstractAuditLog implements AuditLog {
         msg.addEffectiveUser(effectiveUser);
         msg.addIsAdminDn(sgadmin);
         
+        msg.addSamplingRate(samplingRate);
         save(msg);
     }
 
     @Override
     public void logSucceededLogin(String effectiveUser, boolean sgadmin, String initiatingUser, TransportRequest request, String action, Task task) {
+        if(!enabledTransportCategories.contains(Category.AUTHENTICATED)) {
+            return;
+        }
         
-        if(!checkTransportFilter(Category.AUTHENTICATED, action, effectiveUser, request)) {
+        final double samplingRate = checkTransportFilter(Category.AUTHENTICATED, action, effectiveUser, request);
+        
+        if(samplingRate == SamplingPolicy.NOT_AUDITED) {
             return;
         }
         
         final TransportAddress remoteAddress = getRemoteAddress();
-        final List<AuditMessage> msgs = RequestResolver.resolve(Category.AUTHENTICATED, getOrigin(), action, null, effectiveUser, sgadmin, initiatingUser,remoteAddress, request, getThreadContextHeaders(), task, resolver, clusterService, settings, logRequestBody, resolveIndices, resolveBulkRequests, searchguardIndex, null);
+        final List<AuditMessage> msgs = RequestResolver.resolve(Category.AUTHENTICATED, getOrigin(), action, null, effectiveUser, sgadmin, initiatingUser,remoteAddress, request, getThreadContextHeaders(), task, indexResolver, localNode(), settings, logRequestBody(Category.AUTHENTICATED), maxRequestBodyBytes, resolveIndices, resolveBulkRequests, bulkAggregation, searchguardIndex, null);
         
         for(AuditMessage msg: msgs) {
+            msg.addSamplingRate(samplingRate);
             save(msg);
         }
     }
 
     @Override
     public void logSucceededLogin(String effectiveUser, boolean sgadmin, String initiatingUser, RestRequest request) {
+        if(!enabledRestCategories.contains(Category.AUTHENTICATED)) {
+            return;
+        }
         
-        if(!checkRestFilter(Category.AUTHENTICATED, effectiveUser, request)) {
+        final double samplingRate = checkRestFilter(Category.AUTHENTICATED, effectiveUser, request);
+        
+        if(samplingRate == SamplingPolicy.NOT_AUDITED) {
             return;
         }
         
-        AuditMessage msg = new AuditMessage(Category.AUTHENTICATED, clusterService, getOrigin(), Origin.REST);
+        AuditMessage msg = new AuditMessage(Category.AUTHENTICATED, localNode(), getOrigin(), Origin.REST);
         TransportAddress remoteAddress = getRemoteAddress();
         msg.addRemoteAddress(remoteAddress);
-        if(request != null && logRequestBody && request.hasContentOrSourceParam()) {
-           msg.addBody(request.contentOrSourceParam());
+        if(request != null && logRequestBody(msg.getCategory()) && request.hasContentOrSourceParam()) {
+           msg.addBody(request.contentOrSourceParam(), maxRequestBodyBytes);
         }
         
         if(request != null) {
             msg.addPath(request.path());
-            msg.addRestHeaders(request.getHeaders());
+            msg.addRestHeaders(request.getHeaders(), headerFilter);
             msg.addRestParams(request.params());
         }
         
         msg.addInitiatingUser(initiatingUser);
         msg.addEffectiveUser(effectiveUser);
         msg.addIsAdminDn(sgadmin);
+        msg.addSamplingRate(samplingRate);
         save(msg);
     }
 
     @Override
     public void logMissingPrivileges(String privilege, String effectiveUser, RestRequest request) {
-        if(!checkRestFilter(Category.MISSING_PRIVILEGES, effectiveUser, request)) {
+        if(!enabledRestCategories.contains(Category.MISSING_PRIVILEGES)) {
+            return;
+        }
+        
+        final double samplingRate = checkRestFilter(Category.MISSING_PRIVILEGES, effectiveUser, request);
+        
+        if(samplingRate == SamplingPolicy.NOT_AUDITED) {
             return;
         }
         
-        AuditMessage msg = new AuditMessage(Category.MISSING_PRIVILEGES, clusterService, getOrigin(), Origin.REST);
+        AuditMessage msg = new AuditMessage(Category.MISSING_PRIVILEGES, localNode(), getOrigin(), Origin.REST);
         TransportAddress remoteAddress = getRemoteAddress();
         msg.addRemoteAddress(remoteAddress);
-        if(request != null && logRequestBody && request.hasContentOrSourceParam()) {
-           msg.addBody(request.contentOrSourceParam());
+        if(request != null && logRequestBody(msg.getCategory()) && request.hasContentOrSourceParam()) {
+           msg.addBody(request.contentOrSourceParam(), maxRequestBodyBytes);
         }
         if(request != null) {
             msg.addPath(request.path());
-            msg.addRestHeaders(request.getHeaders());
+            msg.addRestHeaders(request.getHeaders(), headerFilter);
             msg.addRestParams(request.params());
         }
         
         msg.addEffectiveUser(effectiveUser);
+        msg.addSamplingRate(samplingRate);
         save(msg);
     }
 
     @Override
     public void logMissingPrivileges(String privilege, TransportRequest request, Task task) {
+        if(!enabledTransportCategories.contains(Category.MISSING_PRIVILEGES)) {
+            return;
+        }
+        
         final String action = null;
         
-        if(!checkTransportFilter(Category.MISSING_PRIVILEGES, privilege, getUser(), request)) {
+        final String effectiveUser = getUser();
+        final double samplingRate = checkTransportFilter(Category.MISSING_PRIVILEGES, privilege, effectiveUser, request);
+        
+        if(samplingRate == SamplingPolicy.NOT_AUDITED) {
             return;
         }
         
         final TransportAddress remoteAddress = getRemoteAddress();
-        final List<AuditMessage> msgs = RequestResolver.resolve(Category.MISSING_PRIVILEGES, getOrigin(), action, privilege, getUser(), null, null, remoteAddress, request, getThreadContextHeaders(), task, resolver, clusterService, settings, logRequestBody, resolveIndices, resolveBulkRequests, searchguardIndex, null);
+        final List<AuditMessage> msgs = RequestResolver.resolve(Category.MISSING_PRIVILEGES, getOrigin(), action, privilege, effectiveUser, null, null, remoteAddress, request, getThreadContextHeaders(), task, indexResolver, localNode(), settings, logRequestBody(Category.MISSING_PRIVILEGES), maxRequestBodyBytes, resolveIndices, resolveBulkRequests, bulkAggregation, searchguardIndex, null);
         
         for(AuditMessage msg: msgs) {
+            msg.addSamplingRate(samplingRate);
             save(msg);
         }
     }
 
     @Override
     public void logGrantedPrivileges(String privilege, TransportRequest request, Task task) {
+        if(!enabledTransportCategories.contains(Category.GRANTED_PRIVILEGES)) {
+            return;
+        }
+        
         final String action = null;
         
-        if(!checkTransportFilter(Category.GRANTED_PRIVILEGES, privilege, getUser(), request)) {
+        final String effectiveUser = getUser();
+        final double samplingRate = checkTransportFilter(Category.GRANTED_PRIVILEGES, privilege, effectiveUser, request);
+        
+        if(samplingRate == SamplingPolicy.NOT_AUDITED) {
             return;
         }
         
         final TransportAddress remoteAddress = getRemoteAddress();
-        final List<AuditMessage> msgs = RequestResolver.resolve(Category.GRANTED_PRIVILEGES, getOrigin(), action, privilege, getUser(), null, null, remoteAddress, request, getThreadContextHeaders(), task, resolver, clusterService, settings, logRequestBody, resolveIndices, resolveBulkRequests, searchguardIndex, null);
+        final List<AuditMessage> msgs = RequestResolver.resolve(Category.GRANTED_PRIVILEGES, getOrigin(), action, privilege, effectiveUser, null, null, remoteAddress, request, getThreadContextHeaders(), task, indexResolver, localNode(), settings, logRequestBody(Category.GRANTED_PRIVILEGES), maxRequestBodyBytes, resolveIndices, resolveBulkRequests, bulkAggregation, searchguardIndex, null);
         
         for(AuditMessage msg: msgs) {
+            msg.addSamplingRate(samplingRate);
             save(msg);
         }
     }
 
     @Override
     public void logBadHeaders(TransportRequest request, String action, Task task) {
+        if(!enabledTransportCategories.contains(Category.BAD_HEADERS)) {
+            return;
+        }
+        
+        final String effectiveUser = getUser();
+        final double samplingRate = checkTransportFilter(Category.BAD_HEADERS, action, effectiveUser, request);
         
-        if(!checkTransportFilter(Category.BAD_HEADERS, action, getUser(), request)) {
+        if(samplingRate == SamplingPolicy.NOT_AUDITED) {
             return;
         }
         
         final TransportAddress remoteAddress = getRemoteAddress();
-        final List<AuditMessage> msgs = RequestResolver.resolve(Category.BAD_HEADERS, getOrigin(), action, null, getUser(), null, null, remoteAddress, request, getThreadContextHeaders(), task, resolver, clusterService, settings, logRequestBody, resolveIndices, resolveBulkRequests, searchguardIndex, null);
+        final List<AuditMessage> msgs = RequestResolver.resolve(Category.BAD_HEADERS, getOrigin(), action, null, effectiveUser, null, null, remoteAddress, request, getThreadContextHeaders(), task, indexResolver, localNode(), settings, logRequestBody(Category.BAD_HEADERS), maxRequestBodyBytes, resolveIndices, resolveBulkRequests, bulkAggregation, searchguardIndex, null);
         
         for(AuditMessage msg: msgs) {
+            msg.addSamplingRate(samplingRate);
             save(msg);
         }
     }
 
     @Override
     public void logBadHeaders(RestRequest request) {
+        if(!enabledRestCategories.contains(Category.BAD_HEADERS)) {
+            return;
+        }
+        
+        final String effectiveUser = getUser();
+        final double samplingRate = checkRestFilter(Category.BAD_HEADERS, effectiveUser, request);
         
-        if(!checkRestFilter(Category.BAD_HEADERS, getUser(), request)) {
+        if(samplingRate == SamplingPolicy.NOT_AUDITED) {
             return;
         }
         
-        AuditMessage msg = new AuditMessage(Category.BAD_HEADERS, clusterService, getOrigin(), Origin.REST);
+        AuditMessage msg = new AuditMessage(Category.BAD_HEADERS, localNode(), getOrigin(), Origin.REST);
         TransportAddress remoteAddress = getRemoteAddress();
         msg.addRemoteAddress(remoteAddress);
-        if(request != null && logRequestBody && request.hasContentOrSourceParam()) {
-            msg.addBody(request.contentOrSourceParam());
+        if(request != null && logRequestBody(msg.getCategory()) && request.hasContentOrSourceParam()) {
+            msg.addBody(request.contentOrSourceParam(), maxRequestBodyBytes);
         }
         if(request != null) {
             msg.addPath(request.path());
-            msg.addRestHeaders(request.getHeaders());
+            msg.addRestHeaders(request.getHeaders(), headerFilter);
             msg.addRestParams(request.params());
         }
         
-        msg.addEffectiveUser(getUser());
+        msg.addEffectiveUser(effectiveUser);
 
+        msg.addSamplingRate(samplingRate);
         save(msg);
     }
 
     @Override
     public void logSgIndexAttempt(TransportRequest request, String action, Task task) {
+        if(!enabledTransportCategories.contains(Category.SG_INDEX_ATTEMPT)) {
+            return;
+        }
         
-        if(!checkTransportFilter(Category.SG_INDEX_ATTEMPT, action, getUser(), request)) {
+        final String effectiveUser = getUser();
+        final double samplingRate = checkTransportFilter(Category.SG_INDEX_ATTEMPT, action, effectiveUser, request);
+        
+        if(samplingRate == SamplingPolicy.NOT_AUDITED) {
             return;
         }
         
         final TransportAddress remoteAddress = getRemoteAddress();
-        final List<AuditMessage> msgs = RequestResolver.resolve(Category.SG_INDEX_ATTEMPT, getOrigin(), action, null, getUser(), false, null, remoteAddress, request, getThreadContextHeaders(), task, resolver, clusterService, settings, logRequestBody, resolveIndices, resolveBulkRequests, searchguardIndex, null);
+        final List<AuditMessage> msgs = RequestResolver.resolve(Category.SG_INDEX_ATTEMPT, getOrigin(), action, null, effectiveUser, false, null, remoteAddress, request, getThreadContextHeaders(), task, indexResolver, localNode(), settings, logRequestBody(Category.SG_INDEX_ATTEMPT), maxRequestBodyBytes, resolveIndices, resolveBulkRequests, bulkAggregation, searchguardIndex, null);
         
         for(AuditMessage msg: msgs) {
+            msg.addSamplingRate(samplingRate);
             save(msg);
         }
     }
 
     @Override
     public void logSSLException(TransportRequest request, Throwable t, String action, Task task) { 
+        if(!enabledTransportCategories.contains(Category.SSL_EXCEPTION)) {
+            return;
+        }
+        
+        final String effectiveUser = getUser();
+        final double samplingRate = checkTransportFilter(Category.SSL_EXCEPTION, action, effectiveUser, request);
         
-        if(!checkTransportFilter(Category.SSL_EXCEPTION, action, getUser(), request)) {
+        if(samplingRate == SamplingPolicy.NOT_AUDITED) {
             return;
         }
         
         final TransportAddress remoteAddress = getRemoteAddress();
-        final List<AuditMessage> msgs = RequestResolver.resolve(Category.SSL_EXCEPTION, getOrigin(), action, null, getUser(), false, null, remoteAddress, request, 
-                getThreadContextHeaders(), task, resolver, clusterService, settings, logRequestBody, resolveIndices, resolveBulkRequests, searchguardIndex, t);
+        final List<AuditMessage> msgs = RequestResolver.resolve(Category.SSL_EXCEPTION, getOrigin(), action, null, effectiveUser, false, null, remoteAddress, request, 
+                getThreadContextHeaders(), task, indexResolver, localNode(), settings, logRequestBody(Category.SSL_EXCEPTION), maxRequestBodyBytes, resolveIndices, resolveBulkRequests, bulkAggregation, searchguardIndex, t);
         
         for(AuditMessage msg: msgs) {
+            msg.addSamplingRate(samplingRate);
             save(msg);
         }
     }
 
     @Override
     public void logSSLException(RestRequest request, Throwable t) {
+        if(!enabledRestCategories.contains(Category.SSL_EXCEPTION)) {
+            return;
+        }
+        
+        final String effectiveUser = getUser();
+        final double samplingRate = checkRestFilter(Category.SSL_EXCEPTION, effectiveUser, request);
         
-        if(!checkRestFilter(Category.SSL_EXCEPTION, getUser(), request)) {
+        if(samplingRate == SamplingPolicy.NOT_AUDITED) {
             return;
         }
         
-        AuditMessage msg = new AuditMessage(Category.SSL_EXCEPTION, clusterService, getOrigin(), Origin.REST);
+        AuditMessage msg = new AuditMessage(Category.SSL_EXCEPTION, localNode(), getOrigin(), Origin.REST);
         TransportAddress remoteAddress = getRemoteAddress();
         msg.addRemoteAddress(remoteAddress);
-        if(request != null && logRequestBody && request.hasContentOrSourceParam()) {
-            msg.addBody(request.contentOrSourceParam());
+        if(request != null && logRequestBody(msg.getCategory()) && request.hasContentOrSourceParam()) {
+            msg.addBody(request.contentOrSourceParam(), maxRequestBodyBytes);
         }
         
         if(request != null) {
             msg.addPath(request.path());
-            msg.addRestHeaders(request.getHeaders());
+            msg.addRestHeaders(request.getHeaders(), headerFilter);
             msg.addRestParams(request.params());
         }
         msg.addException(t);
-        msg.addEffectiveUser(getUser());
+        msg.addEffectiveUser(effectiveUser);
+        msg.addSamplingRate(samplingRate);
         save(msg);
     }
 
+    private boolean logRequestBody(final Category category) {
+        return logRequestBody && !requestBodyDisabledCategories.contains(category);
+    }
+    
+    SamplingPolicy getSamplingPolicy() {
+        return samplingPolicy;
+    }
+
+    private LocalNodeMetadata localNode() {
+        return localNode.get();
+    }
+    
+    /**
+     * Removes the listeners registered with the cluster service, to be called when the audit log is closed.
+     */
+    protected void removeListeners() {
+        if (localNode != null) {
+            localNode.close();
+        }
+    }
+    
     private Origin getOrigin() {
         String origin = (String) threadPool.getThreadContext().getTransient(ConfigConstants.SG_ORIGIN);
         
@@ -383,43 +555,33 @@ public abstract class AbstractAuditLog implements AuditLog {
     }
     
     private TransportAddress getRemoteAddress() {
-        TransportAddress address = threadPool.getThreadContext().getTransient(ConfigConstants.SG_REMOTE_ADDRESS);
-        if(address == null && threadPool.getThreadContext().getHeader(ConfigConstants.SG_REMOTE_ADDRESS_HEADER) != null) {
-            address = new TransportAddress((InetSocketAddress) Base64Helper.deserializeObject(threadPool.getThreadContext().getHeader(ConfigConstants.SG_REMOTE_ADDRESS_HEADER)));
+        final TransportAddress address = threadPool.getThreadContext().getTransient(ConfigConstants.SG_REMOTE_ADDRESS);
+        if(address == null) {
+            return remoteAddressHeaders.get(threadPool.getThreadContext().getHeader(ConfigConstants.SG_REMOTE_ADDRESS_HEADER));
         }
         return address;
     }
     
     private String getUser() {
-        User user = threadPool.getThreadContext().getTransient(ConfigConstants.SG_USER);
-        if(user == null && threadPool.getThreadContext().getHeader(ConfigConstants.SG_USER_HEADER) != null) {
-            user = (User) Base64Helper.deserializeObject(threadPool.getThreadContext().getHeader(ConfigConstants.SG_USER_HEADER));
+        final User user = threadPool.getThreadContext().getTransient(ConfigConstants.SG_USER);
+        if(user == null) {
+            return userHeaders.get(threadPool.getThreadContext().getHeader(ConfigConstants.SG_USER_HEADER));
         }
-        return user==null?null:user.getName();
+        return user.getName();
     }
     
     private Map<String, String> getThreadContextHeaders() {
-        return threadPool.getThreadContext().getHeaders();
+        // filtered once, shared by all messages of the event
+        return headerFilter.filter(threadPool.getThreadContext().getHeaders());
     }
     
-    private boolean checkTransportFilter(final Category category, final String action, final String effectiveUser, TransportRequest request) {
+    private double checkTransportFilter(final Category category, final String action, final String effectiveUser, TransportRequest request) {
         
         if(log.isTraceEnabled()) {
             log.trace("Check category:{}, action:{}, effectiveUser:{}, request:{}", category, action, effectiveUser, request==null?null:request.getClass().getSimpleName());
         }
         
         
-        if(!transportAuditingEnabled) {
-            //ignore for certain categories
-            if(category != Category.FAILED_LOGIN 
-                    && category != Category.MISSING_PRIVILEGES 
-                    && category != Category.SG_INDEX_ATTEMPT) {
-                
-                return false;
-            }
-            
-        }
-        
         //skip internals
         if(action != null 
                 && 
@@ -434,36 +596,29 @@ public abstract class AbstractAuditLog implements AuditLog {
             //    log.trace("Skipped audit log message due to category ({}) or action ({}) does not match", category, action);
             //}
         
-            return false;
+            return SamplingPolicy.NOT_AUDITED;
         }
         
-        if (ignoreAuditUsers.size() > 0 && WildcardMatcher.matchAny(ignoreAuditUsers, effectiveUser)) {
+        if (ignoredUsers.matches(effectiveUser)) {
             
             if(log.isTraceEnabled()) {
                 log.trace("Skipped audit log message because of user {} is ignored", effectiveUser);
             }
             
-            return false;
+            return SamplingPolicy.NOT_AUDITED;
         }
         
-        if (request != null && ignoreAuditRequests.size() > 0 
-                && (WildcardMatcher.matchAny(ignoreAuditRequests, action) || WildcardMatcher.matchAny(ignoreAuditRequests, request.getClass().getSimpleName()))) {
+        if (request != null && !ignoredRequests.isEmpty() 
+                && (ignoredRequests.matches(action) || ignoredRequests.matchesSimpleName(request.getClass()))) {
             
             if(log.isTraceEnabled()) {
                 log.trace("Skipped audit log message because request {} is ignored", action+"#"+request.getClass().getSimpleName());
             }
             
-            return false;
+            return SamplingPolicy.NOT_AUDITED;
         }
         
-        if (!disabledTransportCategories.contains(category.toString())) {
-            return true;        
-        } else {
-            if(log.isTraceEnabled()) {
-                log.trace("Skipped audit log message because category {} not enabled", category);
-            }
-            return false;
-        }
+        return samplingPolicy.sample(category, action, effectiveUser);
         
         
         //skip cluster:monitor, index:monitor, internal:*
@@ -474,50 +629,32 @@ public abstract class AbstractAuditLog implements AuditLog {
 
     }
     
-    private boolean checkRestFilter(final Category category, final String effectiveUser, RestRequest request) {
+    private double checkRestFilter(final Category category, final String effectiveUser, RestRequest request) {
         
         if(log.isTraceEnabled()) {
             log.trace("Check for REST category:{}, effectiveUser:{}, request:{}", category, effectiveUser, request==null?null:request.path());
         }
         
-        if(!restAuditingEnabled) {
-            //ignore for certain categories
-            if(category != Category.FAILED_LOGIN 
-                    && category != Category.MISSING_PRIVILEGES 
-                    && category != Category.SG_INDEX_ATTEMPT) {
-                
-                return false;
-            }
-            
-        }
-        
-        if (ignoreAuditUsers.size() > 0 && WildcardMatcher.matchAny(ignoreAuditUsers, effectiveUser)) {
+        if (ignoredUsers.matches(effectiveUser)) {
             
             if(log.isTraceEnabled()) {
                 log.trace("Skipped audit log message because of user {} is ignored", effectiveUser);
             }
             
-            return false;
+            return SamplingPolicy.NOT_AUDITED;
         }
         
-        if (request != null && ignoreAuditRequests.size() > 0 
-                && (WildcardMatcher.matchAny(ignoreAuditRequests, request.path()))) {
+        if (request != null && !ignoredRequests.isEmpty() 
+                && ignoredRequests.matches(request.path())) {
             
             if(log.isTraceEnabled()) {
                 log.trace("Skipped audit log message because request {} is ignored", request.path());
             }
             
-            return false;
+            return SamplingPolicy.NOT_AUDITED;
         }
         
-        if (!disabledRestCategories.contains(category.toString())) {
-            return true;        
-        } else {
-            if(log.isTraceEnabled()) {
-                log.trace("Skipped audit log message because category {} not enabled", category);
-            }
-            return false;
-        }
+        return samplingPolicy.sample(category, request==null?null:request.path(), effectiveUser);
         
         
         //check rest audit enabled
@@ -16,11 +16,14 @@ package com.floragunn.searchguard.auditlog.impl;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.logging.log4j.LogManager;
@@ -29,17 +32,36 @@ import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.env.Environment;
 import org.elasticsearch.threadpool.ThreadPool;
 
+import com.floragunn.searchguard.auditlog.impl.AuditMessage.Category;
+import com.floragunn.searchguard.auditlog.impl.AuditMessageRingBuffer.OverflowPolicy;
+import com.floragunn.searchguard.auditlog.impl.AuditMessageRingBuffer.WaitStrategy;
 import com.floragunn.searchguard.support.ConfigConstants;
 
 public final class AuditLogImpl extends AbstractAuditLog {
     
     private final static int DEFAULT_THREAD_POOL_SIZE = 10;
     private final static int DEFAULT_THREAD_POOL_MAX_QUEUE_LEN = 100 * 1000;
+    private final static String DEFAULT_WAIT_STRATEGY = WaitStrategy.SLEEPING.name();
+    private final static String DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP_NEWEST.name();
+    private final static TimeValue DEFAULT_BLOCK_TIMEOUT = TimeValue.timeValueSeconds(1);
+    private final static ByteSizeValue DEFAULT_SPILL_MAX_SIZE = new ByteSizeValue(1, ByteSizeUnit.GB);
+    private final static ByteSizeValue DEFAULT_SPILL_SEGMENT_SIZE = new ByteSizeValue(64, ByteSizeUnit.MB);
+    private final static int DEFAULT_SPILL_FSYNC_BATCH_SIZE = 128;
+    private final static TimeValue DEFAULT_DEDUP_WINDOW = TimeValue.timeValueSeconds(5);
+    private final static int DEFAULT_DEDUP_MAX_ENTRIES = 10 * 1000;
+    private final static List<String> DEFAULT_DEDUP_FIELDS = Arrays.asList(AuditMessage.CATEGORY, AuditMessage.REQUEST_EFFECTIVE_USER, 
+            AuditMessage.REMOTE_ADDRESS, AuditMessage.TRANSPORT_ACTION, AuditMessage.PRIVILEGE, AuditMessage.REST_REQUEST_PATH, AuditMessage.INDICES);
     
 	// package private for unit tests :(
-    final ExecutorService pool;
+    final AuditMessageRingBuffer pool;
+    private final AuditMessageSpillQueue spillQueue;
+    private final AuditMessageDeduplicator deduplicator;
         
     AuditLogSink delegate;
     
@@ -73,13 +95,77 @@ public final class AuditLogImpl extends AbstractAuditLog {
         //printLicenseInfo();
     }
     
-    private ThreadPoolExecutor createExecutor(final int threadPoolSize, final int maxQueueLen) {
+    private AuditMessageRingBuffer createRingBuffer(final int threadPoolSize, final int maxQueueLen, final WaitStrategy waitStrategy, 
+            final OverflowPolicy overflowPolicy, final TimeValue blockTimeout) {
         if(log.isDebugEnabled()) {
-            log.debug("Create new executor with threadPoolSize: {} and maxQueueLen: {}", threadPoolSize, maxQueueLen);
+            log.debug("Create new ring buffer with threadPoolSize: {}, maxQueueLen: {}, waitStrategy: {} and overflowPolicy: {}", 
+                    threadPoolSize, maxQueueLen, waitStrategy, overflowPolicy);
+        }
+        return new AuditMessageRingBuffer(delegate, threadPoolSize, maxQueueLen, waitStrategy, overflowPolicy, blockTimeout.millis(), TimeUnit.MILLISECONDS, spillQueue);
+    }
+    
+    private AuditMessageSpillQueue createSpillQueue(final Settings settings, final Path configPath) {
+        final String spillPath = settings.get("searchguard.audit.spill.path", null);
+        Path directory = null;
+        
+        try {
+            directory = spillPath != null ? Paths.get(spillPath) : new Environment(settings, configPath).dataFiles()[0].resolve("searchguard_audit_spill");
+            final long maxSize = settings.getAsBytesSize("searchguard.audit.spill.max_size", DEFAULT_SPILL_MAX_SIZE).getBytes();
+            final long segmentSize = settings.getAsBytesSize("searchguard.audit.spill.segment_size", DEFAULT_SPILL_SEGMENT_SIZE).getBytes();
+            final int fsyncBatchSize = settings.getAsInt("searchguard.audit.spill.fsync_batch_size", DEFAULT_SPILL_FSYNC_BATCH_SIZE).intValue();
+            
+            if(log.isDebugEnabled()) {
+                log.debug("Create new spill queue in {} with maxSize: {}, segmentSize: {} and fsyncBatchSize: {}", 
+                        directory, maxSize, segmentSize, fsyncBatchSize);
+            }
+            return new AuditMessageSpillQueue(directory, maxSize, segmentSize, fsyncBatchSize);
+        } catch (Exception e) {
+            log.error("Unable to create audit log spill queue in {}, falling back to overflow policy '{}' due to {}", directory, DEFAULT_OVERFLOW_POLICY, e.toString(), e);
+            return null;
+        }
+    }
+    
+    private AuditMessageDeduplicator createDeduplicator(final Settings settings) {
+        final EnumSet<Category> categories = EnumSet.noneOf(Category.class);
+        
+        for (String category : settings.getAsList("searchguard.audit.config.dedup.categories", Collections.emptyList())) {
+            try {
+                categories.add(Category.valueOf(category.toUpperCase()));
+            } catch (IllegalArgumentException e) {
+                log.error("Unkown category {}, please check searchguard.audit.config.dedup.categories settings", category);
+            }
+        }
+        
+        if (categories.isEmpty()) {
+            return null;
+        }
+        
+        final List<String> fields = settings.getAsList("searchguard.audit.config.dedup.fields", DEFAULT_DEDUP_FIELDS);
+        final TimeValue window = settings.getAsTime("searchguard.audit.config.dedup.window", DEFAULT_DEDUP_WINDOW);
+        final int maxEntries = settings.getAsInt("searchguard.audit.config.dedup.max_entries", DEFAULT_DEDUP_MAX_ENTRIES).intValue();
+        
+        log.info("Deduplicate audit messages of categories {} by {} within {}", categories, fields, window);
+        return new AuditMessageDeduplicator(categories, fields, window.millis(), maxEntries, this::dispatch);
+    }
+    
+    private OverflowPolicy getOverflowPolicy(final Settings settings) {
+        final String overflowPolicy = settings.get("searchguard.audit.threadpool.overflow_policy", DEFAULT_OVERFLOW_POLICY);
+        try {
+            return OverflowPolicy.valueOf(overflowPolicy.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.error("Unknown overflow policy '{}', falling back to '{}'", overflowPolicy, DEFAULT_OVERFLOW_POLICY);
+            return OverflowPolicy.valueOf(DEFAULT_OVERFLOW_POLICY);
+        }
+    }
+    
+    private WaitStrategy getWaitStrategy(final Settings settings) {
+        final String waitStrategy = settings.get("searchguard.audit.threadpool.wait_strategy", DEFAULT_WAIT_STRATEGY);
+        try {
+            return WaitStrategy.valueOf(waitStrategy.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.error("Unknown wait strategy '{}', falling back to '{}'", waitStrategy, DEFAULT_WAIT_STRATEGY);
+            return WaitStrategy.valueOf(DEFAULT_WAIT_STRATEGY);
         }
-        return new ThreadPoolExecutor(threadPoolSize, threadPoolSize,
-                0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<Runnable>(maxQueueLen));
     }
 
     public AuditLogImpl(final Settings settings, final Path configPath, Client clientProvider, ThreadPool threadPool,
@@ -97,7 +183,6 @@ public final class AuditLogImpl extends AbstractAuditLog {
             threadPoolMaxQueueLen = DEFAULT_THREAD_POOL_MAX_QUEUE_LEN;
         }
         
-        this.pool = createExecutor(threadPoolSize, threadPoolMaxQueueLen);        
       
         final String index = settings.get(ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_INDEX,"'sg6-auditlog-'YYYY.MM.dd");
         final String doctype = settings.get(ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_TYPE,"auditlog");
@@ -150,6 +235,27 @@ public final class AuditLogImpl extends AbstractAuditLog {
         if(delegate != null) {
             log.info("Audit Log class: {}", delegate.getClass().getSimpleName());
             
+            OverflowPolicy overflowPolicy = getOverflowPolicy(settings);
+            
+            if(overflowPolicy == OverflowPolicy.SPILL) {
+                this.spillQueue = createSpillQueue(settings, configPath);
+                if(this.spillQueue == null) {
+                    overflowPolicy = OverflowPolicy.valueOf(DEFAULT_OVERFLOW_POLICY);
+                }
+            } else {
+                this.spillQueue = null;
+            }
+            
+            this.pool = createRingBuffer(threadPoolSize, threadPoolMaxQueueLen, getWaitStrategy(settings), overflowPolicy, 
+                    settings.getAsTime("searchguard.audit.threadpool.block_timeout", DEFAULT_BLOCK_TIMEOUT));
+            
+            if(spillQueue != null && !spillQueue.isEmpty()) {
+                // replay messages spilled before the last shutdown
+                pool.start();
+            }
+            
+            this.deduplicator = createDeduplicator(settings);
+            
             final SecurityManager sm = System.getSecurityManager();
 
             if (sm != null) {
@@ -177,6 +283,9 @@ public final class AuditLogImpl extends AbstractAuditLog {
             });
             
         } else {
+            this.pool = null;
+            this.spillQueue = null;
+            this.deduplicator = null;
             log.info("Audit Log available but disabled");
         }        
     }
@@ -184,6 +293,13 @@ public final class AuditLogImpl extends AbstractAuditLog {
     @Override
     public void close() throws IOException {
         
+        removeListeners();
+        
+        if(deduplicator != null) {
+            // hand over the held back messages while the pool still accepts them
+            deduplicator.close();
+        }
+        
         if(pool != null) {
             pool.shutdown(); // Disable new tasks from being submitted
                     
@@ -201,6 +317,31 @@ public final class AuditLogImpl extends AbstractAuditLog {
               // Preserve interrupt status
               Thread.currentThread().interrupt();
             }
+            
+            log.info("Audit log ring buffer overflow statistics: {}", pool.overflowStats());
+        }
+        
+        getSamplingPolicy().logStatistics();
+        
+        if(spillQueue != null) {
+            // keep what was not stored for the next start
+            int spilled = 0;
+            AuditMessage msg;
+            while((msg = pool.pollUnstored()) != null) {
+                if(spillQueue.append(msg)) {
+                    spilled++;
+                }
+            }
+            
+            if(spilled > 0) {
+                log.info("Spilled {} pending audit messages to {}", spilled, spillQueue.getDirectory());
+            }
+            
+            try {
+                spillQueue.close();
+            } catch(Exception ex) {
+                log.warn("Could not close audit log spill queue due to '{}'", ex.getMessage());
+            }
         }
     	if(delegate != null) {
         	try {
@@ -213,21 +354,25 @@ public final class AuditLogImpl extends AbstractAuditLog {
         
     }
 
+    /**
+     * @return the overflow counters (dropped, blocked, spilled and replayed messages) of the ring buffer,
+     *         empty if audit logging is disabled
+     */
+    public Map<String, Long> getOverflowCounters() {
+        return pool == null ? Collections.<String, Long>emptyMap() : pool.getOverflowCounters();
+    }
+
     @Override
     protected void save(final AuditMessage msg) {
     	// only save if we have a valid delegate
 
         if(delegate != null) {
-            if(delegate.isHandlingBackpressure()) {
-                delegate.store(msg);
+            if(deduplicator != null && deduplicator.offer(msg)) {
                 if(log.isTraceEnabled()) {
-                    log.trace("stored on delegate {} synchronously", delegate.getClass().getSimpleName());
+                    log.trace("held back by deduplicator");
                 }
             } else {
-                saveAsync(msg); 
-                if(log.isTraceEnabled()) {
-                    log.trace("will store on delegate {} asynchronously", delegate.getClass().getSimpleName());
-                }
+                dispatch(msg);
             }
         } else {
             if(log.isTraceEnabled()) {
@@ -236,19 +381,24 @@ public final class AuditLogImpl extends AbstractAuditLog {
         }
     }
     
+    private void dispatch(final AuditMessage msg) {
+        if(delegate.isHandlingBackpressure()) {
+            delegate.store(msg);
+            if(log.isTraceEnabled()) {
+                log.trace("stored on delegate {} synchronously", delegate.getClass().getSimpleName());
+            }
+        } else {
+            saveAsync(msg); 
+            if(log.isTraceEnabled()) {
+                log.trace("will store on delegate {} asynchronously", delegate.getClass().getSimpleName());
+            }
+        }
+    }
+    
     protected void saveAsync(final AuditMessage msg) {
-    	try {
-            pool.submit(new Runnable() { 
-                @Override
-                public void run() {
-                    delegate.store(msg);
-                    if(log.isTraceEnabled()) {
-                        log.trace("stored on delegate {} asynchronously", delegate.getClass().getSimpleName());
-                    }
-                }
-            });                                                      		    		
-    	} catch(Exception ex) {
-            log.error("Could not submit audit message {} to thread pool for delegate '{}' due to '{}'", msg, delegate.getClass().getSimpleName(), ex.getMessage(), ex);                   		
-    	}
+        // overflows are counted and logged rate limited by the ring buffer itself
+        if(!pool.publish(msg) && log.isTraceEnabled()) {
+            log.trace("Could not submit audit message to ring buffer for delegate '{}'", delegate.getClass().getSimpleName());
+        }
     }
 }
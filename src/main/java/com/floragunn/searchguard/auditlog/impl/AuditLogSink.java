@@ -15,24 +15,37 @@
 package com.floragunn.searchguard.auditlog.impl;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.threadpool.ThreadPool;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.format.DateTimeFormatter;
 
+import com.floragunn.searchguard.httpclient.GzipCompressor;
+
 public abstract class AuditLogSink {
 
+    // how long a sink counts as unhealthy after a failed delivery
+    static final long FAILURE_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(10);
+
     protected final Logger log = LogManager.getLogger(this.getClass());
     protected final ThreadPool threadPool;
     protected final IndexNameExpressionResolver resolver;
     protected final ClusterService clusterService;
     protected final Settings settings;
+    // messages buffered or sent asynchronously whose outcome is not known yet
+    private final AtomicLong undelivered = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile long lastFailure;
 
     protected AuditLogSink(Settings settings, final ThreadPool threadPool, final IndexNameExpressionResolver resolver, final ClusterService clusterService) {
         this.threadPool = threadPool;
@@ -51,10 +64,85 @@ public abstract class AuditLogSink {
 
     }
     
+    /**
+     * To be called before messages are buffered or sent asynchronously, so that {@link #isDrained()} 
+     * is false until {@link #deliveryCompleted(int)} is called for them.
+     */
+    protected final void deliveryStarted(final int messages) {
+        undelivered.addAndGet(messages);
+    }
+    
+    /**
+     * To be called once messages passed to {@link #deliveryStarted(int)} were delivered or given up. 
+     * Messages which were given up must be reported with {@link #deliveryFailed()} before.
+     */
+    protected final void deliveryCompleted(final int messages) {
+        undelivered.addAndGet(-messages);
+    }
+    
+    /**
+     * To be called whenever messages could not be delivered, also if they are retried later.
+     */
+    protected final void deliveryFailed() {
+        lastFailure = System.nanoTime();
+        failures.incrementAndGet();
+    }
+    
+    /**
+     * @return true if every message passed to {@link #store(AuditMessage)} so far was delivered or given up, 
+     *         synchronous sinks are always drained
+     */
+    boolean isDrained() {
+        return undelivered.get() == 0;
+    }
+    
+    /**
+     * @return the number of failed deliveries so far, see {@link #deliveryFailed()}
+     */
+    long getFailures() {
+        return failures.get();
+    }
+    
+    /**
+     * @return false within {@link #FAILURE_BACKOFF_NANOS} after a failed delivery
+     */
+    boolean isHealthy() {
+        return failures.get() == 0 || System.nanoTime() - lastFailure >= FAILURE_BACKOFF_NANOS;
+    }
+    
+    /**
+     * @return a compressor for request bodies of HTTP based sinks or null if compression is disabled
+     */
+    protected GzipCompressor createCompressor(final Settings settings) {
+        if (!settings.getAsBoolean("searchguard.audit.config.compression.enabled", false)) {
+            return null;
+        }
+        
+        final int level = settings.getAsInt("searchguard.audit.config.compression.level", 3);
+        final ByteSizeValue minSize = settings.getAsBytesSize("searchguard.audit.config.compression.min_size", new ByteSizeValue(1, ByteSizeUnit.KB));
+        
+        try {
+            final GzipCompressor compressor = new GzipCompressor(level, (int) Math.min(Integer.MAX_VALUE, minSize.getBytes()));
+            log.info("Gzip compression of request bodies enabled with level {} and minimum size {}", level, minSize);
+            return compressor;
+        } catch (IllegalArgumentException e) {
+            log.error("Gzip compression disabled due to {}", e.getMessage());
+            return null;
+        }
+    }
+    
     protected String getExpandedIndexName(DateTimeFormatter indexPattern, String index) {
         if(indexPattern == null) {
             return index;
         }
         return indexPattern.print(DateTime.now(DateTimeZone.UTC));
     }
+    
+    // like above but the expanded name is cached until the pattern rolls over
+    String getExpandedIndexName(RollingIndexName indexPattern, String index) {
+        if(indexPattern == null) {
+            return index;
+        }
+        return indexPattern.current();
+    }
 }
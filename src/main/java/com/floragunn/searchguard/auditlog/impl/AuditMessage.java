@@ -20,7 +20,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.stream.Collectors;
 
 import org.apache.http.client.utils.URIBuilder;
 import org.elasticsearch.ExceptionsHelper;
@@ -29,20 +28,17 @@ import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.transport.TransportAddress;
-import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.common.xcontent.json.JsonXContent;
 import org.elasticsearch.index.shard.ShardId;
-import org.joda.time.DateTime;
-import org.joda.time.DateTimeZone;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
 
 import com.floragunn.searchguard.auditlog.AuditLog.Origin;
 
-public final class AuditMessage {
+public final class AuditMessage implements ToXContentObject {
     
-    private static final String AUTHORIZATION_HEADER = "Authorization";
     public static final String FORMAT_VERSION = "audit_format_version";
     public static final String CATEGORY = "audit_category";
     public static final String REQUEST_EFFECTIVE_USER = "audit_request_effective_user";
@@ -68,6 +64,10 @@ public final class AuditMessage {
     
     public static final String ID = "audit_trace_doc_id";
     public static final String TYPES = "audit_trace_doc_types";
+    public static final String IDS = "audit_trace_doc_ids";
+    public static final String OP_TYPES = "audit_trace_doc_op_types";
+    public static final String SOURCE_DIGESTS = "audit_trace_doc_source_digests";
+    public static final String BULK_ITEM_COUNT = "audit_trace_bulk_item_count";
     //public static final String SOURCE = "audit_trace_doc_source";
     public static final String INDICES = "audit_trace_indices";
     public static final String SHARD_ID = "audit_trace_shard_id";
@@ -82,186 +82,308 @@ public final class AuditMessage {
     
     public static final String REQUEST_BODY = "audit_request_body";
     public static final String REQUEST_LAYER = "audit_request_layer";
+    public static final String SAMPLING_RATE = "audit_sampling_rate";
+    public static final String OCCURRENCES = "audit_occurrences";
+    public static final String FIRST_OCCURRENCE = "audit_first_occurrence";
+    public static final String LAST_OCCURRENCE = "audit_last_occurrence";
 
-    private static final DateTimeFormatter DEFAULT_FORMAT = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
-    private final Map<String, Object> auditInfo = new HashMap<String, Object>(50);
+    private static final Integer CURRENT_FORMAT_VERSION = 3;
+    // also the order in which the fields are serialized, followed by the custom fields
+    private static final Field[] FIELDS = Field.values();
+    private static final long NO_TIMESTAMP = Long.MIN_VALUE;
+    // value of each well known field by Field.ordinal(), null if not set
+    private final Object[] fields = new Object[FIELDS.length];
+    // fields without a slot, e.g. from a restored message of a newer format, created on demand
+    private Map<String, Object> customFields;
+    // epoch millis of a new message, restored messages have a formatted UTC_TIMESTAMP instead
+    private long timestamp = NO_TIMESTAMP;
     private final Category msgCategory;
 
     public AuditMessage(final Category msgCategory, final ClusterService clusterService, final Origin origin, final Origin layer) {
+        this(msgCategory, LocalNodeMetadata.of(Objects.requireNonNull(clusterService).localNode()), origin, layer);
+    }
+    
+    AuditMessage(final Category msgCategory, final LocalNodeMetadata localNode, final Origin origin, final Origin layer) {
         this.msgCategory = Objects.requireNonNull(msgCategory);
-        final String currentTime = currentTime();
-        auditInfo.put(FORMAT_VERSION, 3);
-        auditInfo.put(CATEGORY, Objects.requireNonNull(msgCategory));
-        auditInfo.put(UTC_TIMESTAMP, currentTime);
-        auditInfo.put(NODE_HOST_ADDRESS, Objects.requireNonNull(clusterService).localNode().getHostAddress());
-        auditInfo.put(NODE_ID, Objects.requireNonNull(clusterService).localNode().getId());
-        auditInfo.put(NODE_HOST_NAME, Objects.requireNonNull(clusterService).localNode().getHostName());
-        auditInfo.put(NODE_NAME, Objects.requireNonNull(clusterService).localNode().getName());
+        put(Field.FORMAT_VERSION, CURRENT_FORMAT_VERSION);
+        put(Field.CATEGORY, Objects.requireNonNull(msgCategory));
+        // formatted on first access, usually by the sink and not on the thread which handles the request
+        this.timestamp = System.currentTimeMillis();
+        put(Field.NODE_HOST_ADDRESS, localNode.hostAddress);
+        put(Field.NODE_ID, localNode.id);
+        put(Field.NODE_HOST_NAME, localNode.hostName);
+        put(Field.NODE_NAME, localNode.name);
         
         if(origin != null) {
-            auditInfo.put(ORIGIN, origin);
+            put(Field.ORIGIN, origin);
         }
         
         if(layer != null) {
-            auditInfo.put(REQUEST_LAYER, layer);
+            put(Field.REQUEST_LAYER, layer);
+        }
+    }
+    
+    // restore a message which was serialized by toString(), package private for AuditMessageSpillQueue
+    AuditMessage(final Map<String, Object> auditInfo) {
+        this.msgCategory = Category.valueOf(String.valueOf(auditInfo.get(CATEGORY)));
+        
+        for (final Entry<String, Object> entry : auditInfo.entrySet()) {
+            final Field field = Field.forKey(entry.getKey());
+            
+            if (field == null) {
+                if (customFields == null) {
+                    customFields = new HashMap<String, Object>();
+                }
+                customFields.put(entry.getKey(), entry.getValue());
+            } else {
+                put(field, entry.getValue());
+            }
         }
     }
     
     public void addRemoteAddress(TransportAddress remoteAddress) {
         if (remoteAddress != null && remoteAddress.getAddress() != null) {
-            auditInfo.put(REMOTE_ADDRESS, remoteAddress.getAddress());
+            put(Field.REMOTE_ADDRESS, remoteAddress.getAddress());
         }
     }
     
     public void addIsAdminDn(boolean isAdminDn) {
-        auditInfo.put(IS_ADMIN_DN, isAdminDn);
+        put(Field.IS_ADMIN_DN, isAdminDn);
     }
     
     public void addException(Throwable t) {
         if (t != null) {
-            auditInfo.put(EXCEPTION, ExceptionsHelper.stackTrace(t));
+            put(Field.EXCEPTION, ExceptionsHelper.stackTrace(t));
         }
     }
     
     public void addPrivilege(String priv) {
         if (priv != null) {
-            auditInfo.put(PRIVILEGE, priv);
+            put(Field.PRIVILEGE, priv);
         }
     }
 
     public void addInitiatingUser(String user) {
         if (user != null) {
-            auditInfo.put(REQUEST_INITIATING_USER, user);
+            put(Field.REQUEST_INITIATING_USER, user);
         }
     }
     
     public void addEffectiveUser(String user) {
         if (user != null) {
-            auditInfo.put(REQUEST_EFFECTIVE_USER, user);
+            put(Field.REQUEST_EFFECTIVE_USER, user);
         }
     }
 
     public void addPath(String path) {
         if (path != null) {
-            auditInfo.put(REST_REQUEST_PATH, path);
+            put(Field.REST_REQUEST_PATH, path);
         }
     }
 
     public void addBody(Tuple<XContentType, BytesReference> xContentTuple) {
+        addBody(xContentTuple, -1);
+    }
+
+    /**
+     * Add the body, converted to JSON and cut to {@code maxBytes} (no limit if negative) only when the message is serialized.
+     */
+    void addBody(Tuple<XContentType, BytesReference> xContentTuple, long maxBytes) {
         if (xContentTuple != null) {
-            try {
-                auditInfo.put(REQUEST_BODY, XContentHelper.convertToJson(xContentTuple.v2(), false, xContentTuple.v1()));
-            } catch (Exception e) {
-                auditInfo.put(REQUEST_BODY, e.toString());
-            }
+            put(Field.REQUEST_BODY, RequestBody.of(xContentTuple.v1(), xContentTuple.v2(), maxBytes));
         }
     }
 
     public void addRequestType(String requestType) {
         if (requestType != null) {
-            auditInfo.put(TRANSPORT_REQUEST_TYPE, requestType);
+            put(Field.TRANSPORT_REQUEST_TYPE, requestType);
         }
     }
 
     public void addAction(String action) {
         if (action != null) {
-            auditInfo.put(TRANSPORT_ACTION, action);
+            put(Field.TRANSPORT_ACTION, action);
         }
     }
 
     public void addId(String id) {
         if (id != null) {
-            auditInfo.put(ID, id);
+            put(Field.ID, id);
         }
     }
 
     public void addTypes(String[] types) {
         if (types != null && types.length > 0) {
-            auditInfo.put(TYPES, types);
+            put(Field.TYPES, types);
         }
     }
 
     public void addType(String type) {
         if (type != null) {
-            auditInfo.put(TYPES, new String[] { type });
+            put(Field.TYPES, new String[] { type });
+        }
+    }
+
+    public void addIds(String[] ids) {
+        if (ids != null && ids.length > 0) {
+            put(Field.IDS, ids);
+        }
+    }
+
+    public void addOpTypes(String[] opTypes) {
+        if (opTypes != null && opTypes.length > 0) {
+            put(Field.OP_TYPES, opTypes);
+        }
+    }
+
+    public void addSourceDigests(String[] digests) {
+        if (digests != null && digests.length > 0) {
+            put(Field.SOURCE_DIGESTS, digests);
+        }
+    }
+
+    public void addBulkItemCount(int count) {
+        put(Field.BULK_ITEM_COUNT, count);
+    }
+
+    /**
+     * Record the rate the event was sampled with, a message without it represents exactly one event.
+     */
+    public void addSamplingRate(double samplingRate) {
+        if (samplingRate > 0d && samplingRate < 1d) {
+            put(Field.SAMPLING_RATE, samplingRate);
         }
     }
 
+    /**
+     * Record that this message stands for {@code count} identical events seen between the two timestamps (epoch millis).
+     */
+    public void addOccurrences(int count, long firstMillis, long lastMillis) {
+        put(Field.OCCURRENCES, count);
+        put(Field.FIRST_OCCURRENCE, AuditTimestampFormatter.format(firstMillis));
+        put(Field.LAST_OCCURRENCE, AuditTimestampFormatter.format(lastMillis));
+    }
+
     public void addSource(String source) {
         if (source != null) {
-            auditInfo.put(REQUEST_BODY, source);
+            put(Field.REQUEST_BODY, source);
+        }
+    }
+
+    void addSource(String source, long maxBytes) {
+        if (source != null) {
+            put(Field.REQUEST_BODY, maxBytes < 0 ? source : RequestBody.of(source, maxBytes));
+        }
+    }
+
+    /**
+     * Add the UTF-8 source, decoded and cut to {@code maxBytes} (no limit if negative) only when the message is serialized.
+     */
+    void addSource(BytesReference source, long maxBytes) {
+        if (source != null) {
+            put(Field.REQUEST_BODY, RequestBody.of(source, maxBytes));
         }
     }
 
     public void addIndices(String[] indices) {
         if (indices != null && indices.length > 0) {
-            auditInfo.put(INDICES, indices);
+            put(Field.INDICES, indices);
         }
 
     }
 
     public void addResolvedIndices(String[] resolvedIndices) {
         if (resolvedIndices != null && resolvedIndices.length > 0) {
-            auditInfo.put(RESOLVED_INDICES, resolvedIndices);
+            put(Field.RESOLVED_INDICES, resolvedIndices);
         }
     }
     
     public void addTaskId(long id) {
-         auditInfo.put(TASK_ID, auditInfo.get(NODE_ID)+":"+id);
+         put(Field.TASK_ID, get(Field.NODE_ID)+":"+id);
     }
     
     public void addShardId(ShardId id) {
         if(id != null) {
-            auditInfo.put(SHARD_ID, id.getId());
+            put(Field.SHARD_ID, id.getId());
         }
    }
     
     public void addTaskParentId(String id) {
         if(id != null) {
-            auditInfo.put(TASK_PARENT_ID, id);
+            put(Field.TASK_PARENT_ID, id);
         }
     }
     
     public void addRestParams(Map<String,String> params) {
         if(params != null && !params.isEmpty()) {
-            auditInfo.put(REST_REQUEST_PARAMS, new HashMap<>(params));
+            put(Field.REST_REQUEST_PARAMS, new HashMap<>(params));
         }
     }
     
     public void addRestHeaders(Map<String,List<String>> headers) {
-        if(headers != null && !headers.isEmpty()) {
-            final Map<String, List<String>> headersClone = new HashMap<String, List<String>>(headers)
-                    .entrySet().stream()
-                    .filter(map -> !map.getKey().equalsIgnoreCase(AUTHORIZATION_HEADER))
-                    .collect(Collectors.toMap(p -> p.getKey(), p -> p.getValue()));
-            auditInfo.put(REST_REQUEST_HEADERS, headersClone);
+        addRestHeaders(headers, HeaderFilter.DEFAULT);
+    }
+    
+    void addRestHeaders(Map<String,List<String>> headers, HeaderFilter headerFilter) {
+        final Map<String, List<String>> filtered = headerFilter.filter(headers);
+        if(filtered != null) {
+            put(Field.REST_REQUEST_HEADERS, filtered);
         }
     }
     
     public void addTransportHeaders(Map<String,String> headers) {
-        if(headers != null && !headers.isEmpty()) {
-            final Map<String,String> headersClone = new HashMap<String,String>(headers)
-                    .entrySet().stream()
-                    .filter(map -> !map.getKey().equalsIgnoreCase(AUTHORIZATION_HEADER))
-                    .collect(Collectors.toMap(p -> p.getKey(), p -> p.getValue()));
-            auditInfo.put(TRANSPORT_REQUEST_HEADERS, headersClone);
+        addFilteredTransportHeaders(HeaderFilter.DEFAULT.filter(headers));
+    }
+    
+    /**
+     * @param headers already filtered by a {@link HeaderFilter}, may be shared by several messages
+     */
+    void addFilteredTransportHeaders(Map<String,String> headers) {
+        if(headers != null) {
+            put(Field.TRANSPORT_REQUEST_HEADERS, headers);
         }
     }
 
     public Map<String, Object> getAsMap() {
-      return new HashMap<>(this.auditInfo);
+        final Map<String, Object> map = new HashMap<String, Object>(50);
+        
+        for (final Field field : FIELDS) {
+            final Object value = get(field);
+            if (value != null) {
+                map.put(field.key, value);
+            }
+        }
+        
+        if (customFields != null) {
+            map.putAll(customFields);
+        }
+        
+        return map;
+    }
+    
+    /**
+     * @return the value of the field with the given key without copying all fields like {@link #getAsMap()}
+     */
+    Object getValue(final String key) {
+        final Field field = Field.forKey(key);
+        
+        if (field != null) {
+            return get(field);
+        }
+        
+        return customFields == null ? null : customFields.get(key);
     }
     
     public String getInitiatingUser() {
-        return (String) this.auditInfo.get(REQUEST_INITIATING_USER);
+        return (String) get(Field.REQUEST_INITIATING_USER);
     }
     
     public String getEffectiveUser() {
-        return (String) this.auditInfo.get(REQUEST_EFFECTIVE_USER);
+        return (String) get(Field.REQUEST_EFFECTIVE_USER);
     }
 
     public String getRequestType() {
-        return (String) this.auditInfo.get(TRANSPORT_REQUEST_TYPE);
+        return (String) get(Field.TRANSPORT_REQUEST_TYPE);
     }
 
 	public Category getCategory() {
@@ -269,17 +391,45 @@ public final class AuditMessage {
 	}
 
 	@Override
-	public String toString() {
+	public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+	    // serialize the fields directly, no defensive copy like getAsMap()
+	    builder.startObject();
+	    
+	    for (final Field field : FIELDS) {
+	        final Object value = get(field);
+	        if (value != null) {
+	            builder.field(field.key, value);
+	        }
+	    }
+	    
+	    if (customFields != null) {
+	        for (final Entry<String, Object> entry : customFields.entrySet()) {
+	            builder.field(entry.getKey(), entry.getValue());
+	        }
+	    }
+	    
+	    return builder.endObject();
+	}
+
+	/**
+	 * @return this message serialized as JSON, sinks should prefer this over {@link #toString()}
+	 */
+	public BytesReference toBytes() {
 		try {
-			return JsonXContent.contentBuilder().map(getAsMap()).string();
+			return toXContent(JsonXContent.contentBuilder(), ToXContent.EMPTY_PARAMS).bytes();
 		} catch (final IOException e) {
 		    throw ExceptionsHelper.convertToElastic(e);
 		}
 	}
+
+	@Override
+	public String toString() {
+		return toBytes().utf8ToString();
+	}
 	
     public String toPrettyString() {
         try {
-            return JsonXContent.contentBuilder().prettyPrint().map(getAsMap()).string();
+            return toXContent(JsonXContent.contentBuilder().prettyPrint(), ToXContent.EMPTY_PARAMS).string();
         } catch (final IOException e) {
             throw ExceptionsHelper.convertToElastic(e);
         }
@@ -287,8 +437,13 @@ public final class AuditMessage {
 
 	public String toText() {
 		StringBuilder builder = new StringBuilder();
-		for (Entry<String, Object> entry : getAsMap().entrySet()) {
-			addIfNonEmpty(builder, entry.getKey(), stringOrNull(entry.getValue()));
+		for (final Field field : FIELDS) {
+			addIfNonEmpty(builder, field.key, stringOrNull(get(field)));
+		}
+		if (customFields != null) {
+			for (Entry<String, Object> entry : customFields.entrySet()) {
+				addIfNonEmpty(builder, entry.getKey(), stringOrNull(entry.getValue()));
+			}
 		}
 		return builder.toString();
 	}
@@ -299,8 +454,16 @@ public final class AuditMessage {
 
 	public String toUrlParameters() {
 		URIBuilder builder = new URIBuilder();
-		for (Entry<String, Object> entry : getAsMap().entrySet()) {
-			builder.addParameter(entry.getKey(), stringOrNull(entry.getValue()));
+		for (final Field field : FIELDS) {
+			final Object value = get(field);
+			if (value != null) {
+				builder.addParameter(field.key, stringOrNull(value));
+			}
+		}
+		if (customFields != null) {
+			for (Entry<String, Object> entry : customFields.entrySet()) {
+				builder.addParameter(entry.getKey(), stringOrNull(entry.getValue()));
+			}
 		}
 		return builder.toString();
 	}
@@ -324,11 +487,86 @@ public final class AuditMessage {
         AUTHENTICATED;
     }
 
-    private String currentTime() {
-        DateTime dt = new DateTime(DateTimeZone.UTC);        
-        return DEFAULT_FORMAT.print(dt);
+    private void put(final Field field, final Object value) {
+        fields[field.ordinal()] = value;
     }
     
+    private Object get(final Field field) {
+        final Object value = fields[field.ordinal()];
+        
+        if (value == null && field == Field.UTC_TIMESTAMP && timestamp != NO_TIMESTAMP) {
+            return AuditTimestampFormatter.format(timestamp);
+        }
+        
+        if (value instanceof RequestBody) {
+            return value.toString();
+        }
+        
+        return value;
+    }
+
+    /**
+     * The well known fields of an audit message, each one has a fixed slot in {@link AuditMessage#fields}.
+     */
+    private enum Field {
+        FORMAT_VERSION(AuditMessage.FORMAT_VERSION),
+        CATEGORY(AuditMessage.CATEGORY),
+        REQUEST_EFFECTIVE_USER(AuditMessage.REQUEST_EFFECTIVE_USER),
+        REQUEST_INITIATING_USER(AuditMessage.REQUEST_INITIATING_USER),
+        UTC_TIMESTAMP(AuditMessage.UTC_TIMESTAMP),
+        NODE_ID(AuditMessage.NODE_ID),
+        NODE_HOST_ADDRESS(AuditMessage.NODE_HOST_ADDRESS),
+        NODE_HOST_NAME(AuditMessage.NODE_HOST_NAME),
+        NODE_NAME(AuditMessage.NODE_NAME),
+        ORIGIN(AuditMessage.ORIGIN),
+        REMOTE_ADDRESS(AuditMessage.REMOTE_ADDRESS),
+        REST_REQUEST_PATH(AuditMessage.REST_REQUEST_PATH),
+        REST_REQUEST_PARAMS(AuditMessage.REST_REQUEST_PARAMS),
+        REST_REQUEST_HEADERS(AuditMessage.REST_REQUEST_HEADERS),
+        TRANSPORT_REQUEST_TYPE(AuditMessage.TRANSPORT_REQUEST_TYPE),
+        TRANSPORT_ACTION(AuditMessage.TRANSPORT_ACTION),
+        TRANSPORT_REQUEST_HEADERS(AuditMessage.TRANSPORT_REQUEST_HEADERS),
+        ID(AuditMessage.ID),
+        TYPES(AuditMessage.TYPES),
+        INDICES(AuditMessage.INDICES),
+        SHARD_ID(AuditMessage.SHARD_ID),
+        RESOLVED_INDICES(AuditMessage.RESOLVED_INDICES),
+        EXCEPTION(AuditMessage.EXCEPTION),
+        IS_ADMIN_DN(AuditMessage.IS_ADMIN_DN),
+        PRIVILEGE(AuditMessage.PRIVILEGE),
+        TASK_ID(AuditMessage.TASK_ID),
+        TASK_PARENT_ID(AuditMessage.TASK_PARENT_ID),
+        REQUEST_BODY(AuditMessage.REQUEST_BODY),
+        REQUEST_LAYER(AuditMessage.REQUEST_LAYER),
+        // declaration order is the serialization order, new fields go last so that the order of the existing ones does not change
+        IDS(AuditMessage.IDS),
+        OP_TYPES(AuditMessage.OP_TYPES),
+        SOURCE_DIGESTS(AuditMessage.SOURCE_DIGESTS),
+        BULK_ITEM_COUNT(AuditMessage.BULK_ITEM_COUNT),
+        SAMPLING_RATE(AuditMessage.SAMPLING_RATE),
+        OCCURRENCES(AuditMessage.OCCURRENCES),
+        FIRST_OCCURRENCE(AuditMessage.FIRST_OCCURRENCE),
+        LAST_OCCURRENCE(AuditMessage.LAST_OCCURRENCE);
+        
+        private static final Map<String, Field> BY_KEY = new HashMap<String, Field>();
+        
+        static {
+            for (final Field field : values()) {
+                BY_KEY.put(field.key, field);
+            }
+        }
+        
+        private final String key;
+        
+        private Field(final String key) {
+            this.key = key;
+        }
+        
+        static Field forKey(final String key) {
+            return BY_KEY.get(key);
+        }
+    }
+
     protected String stringOrNull(Object object) {
         if(object == null) {
             return null;            
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.floragunn.searchguard.auditlog.impl.AuditMessage.Category;
+
+/**
+ * Collapses identical audit messages (same values for the configured key fields) of the configured categories
+ * into one message per time window. The first message of a window is held back and handed over to the
+ * consumer once the window expired; if more identical messages arrived in the meantime it is amended with
+ * the number of occurrences and the time of the first and the last one.
+ * <p>
+ * The number of open windows is bounded by {@code maxEntries}, messages which do not fit are passed through
+ * immediately. Expired windows are swept by a single daemon timer thread.
+ */
+final class AuditMessageDeduplicator {
+
+    private final Logger log = LogManager.getLogger(this.getClass());
+    private final EnumSet<Category> categories;
+    private final String[] keyFields;
+    private final long windowMillis;
+    private final int maxEntries;
+    private final Consumer<AuditMessage> consumer;
+    private final ConcurrentHashMap<Key, Window> windows;
+    private final ScheduledThreadPoolExecutor timer;
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong passedThrough = new AtomicLong();
+    private volatile boolean closed;
+
+    AuditMessageDeduplicator(final EnumSet<Category> categories, final List<String> keyFields, final long windowMillis, final int maxEntries,
+            final Consumer<AuditMessage> consumer) {
+        this.categories = categories;
+        this.keyFields = keyFields.toArray(new String[keyFields.size()]);
+        this.windowMillis = Math.max(1, windowMillis);
+        this.maxEntries = Math.max(1, maxEntries);
+        this.consumer = consumer;
+        this.windows = new ConcurrentHashMap<Key, Window>(Math.min(this.maxEntries, 1024));
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "searchguard_audit_deduplicator");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // a message waits at most 1.5 windows
+        final long sweepInterval = Math.max(1, this.windowMillis / 2);
+        this.timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep(System.currentTimeMillis());
+                } catch (Exception e) {
+                    log.error("Unable to emit deduplicated audit messages due to {}", e.toString(), e);
+                }
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return true if the message was taken over and will be handed to the consumer later (or was counted
+     *         as a duplicate), false if the caller has to pass it on itself
+     */
+    boolean offer(final AuditMessage msg) {
+        if (closed || !categories.contains(msg.getCategory())) {
+            return false;
+        }
+
+        final Key key = new Key(msg, keyFields);
+        final long now = System.currentTimeMillis();
+
+        for (;;) {
+            Window window = windows.get(key);
+
+            if (window == null) {
+                if (windows.size() >= maxEntries) {
+                    passedThrough.incrementAndGet();
+                    return false;
+                }
+
+                window = new Window(msg, now);
+                final Window existing = windows.putIfAbsent(key, window);
+
+                if (existing == null) {
+                    // close() may have missed the new window if it ran concurrently, emit it here
+                    if (closed) {
+                        emit(key, window);
+                    }
+                    return true;
+                }
+
+                window = existing;
+            }
+
+            if (window.add(now)) {
+                suppressed.incrementAndGet();
+                return true;
+            }
+
+            // expired and already emitted by the sweeper, open a new window
+            windows.remove(key, window);
+        }
+    }
+
+    /**
+     * Emit all windows which were opened before {@code now - window}.
+     */
+    void sweep(final long now) {
+        for (final Entry<Key, Window> entry : windows.entrySet()) {
+            final Window window = entry.getValue();
+
+            if (now - window.first >= windowMillis) {
+                emit(entry.getKey(), window);
+            }
+        }
+    }
+
+    /**
+     * Emit all open windows and stop the timer, messages offered afterwards are not deduplicated anymore.
+     */
+    void close() {
+        closed = true;
+        timer.shutdownNow();
+
+        for (final Entry<Key, Window> entry : windows.entrySet()) {
+            emit(entry.getKey(), entry.getValue());
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Audit message deduplication statistics: suppressed {}, passed through {}", suppressed.get(), passedThrough.get());
+        }
+    }
+
+    long getSuppressed() {
+        return suppressed.get();
+    }
+
+    long getPassedThrough() {
+        return passedThrough.get();
+    }
+
+    private void emit(final Key key, final Window window) {
+        final int count = window.close();
+        windows.remove(key, window);
+
+        if (count == Window.CLOSED) {
+            // emitted concurrently
+            return;
+        }
+
+        if (count > 1) {
+            window.msg.addOccurrences(count, window.first, window.last.get());
+        }
+
+        consumer.accept(window.msg);
+    }
+
+    private static final class Window {
+
+        static final int CLOSED = -1;
+
+        final AuditMessage msg;
+        final long first;
+        final AtomicLong last;
+        final AtomicInteger count = new AtomicInteger(1);
+
+        Window(final AuditMessage msg, final long now) {
+            this.msg = msg;
+            this.first = now;
+            this.last = new AtomicLong(now);
+        }
+
+        boolean add(final long now) {
+            if (count.get() == CLOSED) {
+                return false;
+            }
+
+            // before the count, so that emit() which closes the window after the count was incremented sees it
+            last.accumulateAndGet(now, Math::max);
+
+            for (;;) {
+                final int current = count.get();
+
+                if (current == CLOSED) {
+                    return false;
+                }
+
+                if (count.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        int close() {
+            return count.getAndSet(CLOSED);
+        }
+    }
+
+    private static final class Key {
+
+        private final Object[] values;
+        private final int hashCode;
+
+        Key(final AuditMessage msg, final String[] keyFields) {
+            values = new Object[keyFields.length];
+
+            for (int i = 0; i < keyFields.length; i++) {
+                values[i] = msg.getValue(keyFields[i]);
+            }
+
+            hashCode = Arrays.deepHashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+
+            final Key other = (Key) obj;
+            return hashCode == other.hashCode && Arrays.deepEquals(values, other.values);
+        }
+    }
+}
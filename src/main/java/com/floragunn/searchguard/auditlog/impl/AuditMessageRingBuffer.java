@@ -0,0 +1,717 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Bounded, pre-allocated ring buffer which hands audit messages over from the
+ * (transport) threads producing them to a fixed set of consumer threads draining
+ * them into an {@link AuditLogSink}.
+ * <p>
+ * Every slot carries its own sequence number (Disruptor/Vyukov style). A producer
+ * claims a slot with a single CAS on the producer cursor and publishes it by advancing
+ * the slot sequence, so neither producers nor consumers take a lock and no per message
+ * objects are allocated. How idle consumers wait for new messages is controlled by the
+ * {@link WaitStrategy}, what happens when the ring buffer is full is controlled by the
+ * {@link OverflowPolicy}.
+ * <p>
+ * With {@link OverflowPolicy#SPILL} overflowing messages are handed over to a writer thread which appends them to an
+ * {@link AuditMessageSpillQueue}, so producers never do disk I/O, and a replayer thread feeds them back into the ring buffer whenever it is less than half full
+ * and the sink did not report a failed delivery within {@link AuditLogSink#FAILURE_BACKOFF_NANOS}. The read position of the spill queue is only committed
+ * once the consumers stored every message replayed up to it, the sink delivered everything it was given (see {@link AuditLogSink#isDrained()})
+ * and reported no failed delivery meanwhile. After a failed delivery the spill queue is rewound to the last committed position, so messages are
+ * replayed at least once and possibly more than once.
+ */
+final class AuditMessageRingBuffer {
+
+    private static final int MAX_CAPACITY = 1 << 30;
+    // cursors live 128 bytes apart in the same array to avoid false sharing
+    private static final int PRODUCER_CURSOR = 15;
+    private static final int CONSUMER_CURSOR = 31;
+    // one in flight sequence per consumer, 128 bytes apart as well
+    private static final int IN_FLIGHT_STRIDE = 16;
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long SLEEP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long BLOCKING_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long OVERFLOW_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long OVERFLOW_LOG_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private static final long REPLAY_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Logger log = LogManager.getLogger(this.getClass());
+    private final AuditMessage[] slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray cursors = new AtomicLongArray(47);
+    private final int mask;
+    private final AuditLogSink sink;
+    private final WaitStrategy waitStrategy;
+    private final OverflowPolicy overflowPolicy;
+    private final long blockTimeoutNanos;
+    private final Thread[] consumers;
+    private final AtomicLongArray inFlight;
+    private final AuditMessageSpillQueue spillQueue;
+    private final ArrayBlockingQueue<AuditMessage> spillHandoff;
+    private Thread spillWriter;
+    private Thread replayer;
+    private final ConcurrentLinkedQueue<Thread> parkedConsumers = new ConcurrentLinkedQueue<Thread>();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean running = true;
+    private volatile boolean aborted = false;
+
+    private final LongAdder droppedNewest = new LongAdder();
+    private final LongAdder droppedOldest = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder blockTimeouts = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final AtomicLong lastOverflowLog = new AtomicLong(System.nanoTime() - OVERFLOW_LOG_INTERVAL_NANOS);
+
+    AuditMessageRingBuffer(final AuditLogSink sink, final int consumerCount, final int requestedCapacity, final WaitStrategy waitStrategy) {
+        this(sink, consumerCount, requestedCapacity, waitStrategy, OverflowPolicy.DROP_NEWEST, 0, TimeUnit.MILLISECONDS);
+    }
+
+    AuditMessageRingBuffer(final AuditLogSink sink, final int consumerCount, final int requestedCapacity, final WaitStrategy waitStrategy,
+            final OverflowPolicy overflowPolicy, final long blockTimeout, final TimeUnit blockTimeoutUnit) {
+        this(sink, consumerCount, requestedCapacity, waitStrategy, overflowPolicy, blockTimeout, blockTimeoutUnit, null);
+    }
+
+    AuditMessageRingBuffer(final AuditLogSink sink, final int consumerCount, final int requestedCapacity, final WaitStrategy waitStrategy,
+            final OverflowPolicy overflowPolicy, final long blockTimeout, final TimeUnit blockTimeoutUnit, final AuditMessageSpillQueue spillQueue) {
+        if (consumerCount <= 0) {
+            throw new IllegalArgumentException("consumerCount must be greater than 0 but was " + consumerCount);
+        }
+
+        if (requestedCapacity <= 0) {
+            throw new IllegalArgumentException("requestedCapacity must be greater than 0 but was " + requestedCapacity);
+        }
+
+        if (overflowPolicy == OverflowPolicy.SPILL && spillQueue == null) {
+            throw new IllegalArgumentException("Overflow policy " + overflowPolicy + " requires a spill queue");
+        }
+
+        final int capacity = capacityFor(requestedCapacity);
+        this.sink = sink;
+        this.waitStrategy = waitStrategy;
+        this.overflowPolicy = overflowPolicy;
+        this.blockTimeoutNanos = blockTimeoutUnit.toNanos(blockTimeout);
+        this.slots = new AuditMessage[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        this.consumers = new Thread[consumerCount];
+        this.inFlight = new AtomicLongArray(consumerCount * IN_FLIGHT_STRIDE);
+        this.spillQueue = spillQueue;
+        this.spillHandoff = spillQueue == null ? null : new ArrayBlockingQueue<AuditMessage>(capacity);
+
+        for (int i = 0; i < capacity; i++) {
+            sequences.lazySet(i, i);
+        }
+
+        for (int i = 0; i < consumerCount; i++) {
+            inFlight.lazySet(i * IN_FLIGHT_STRIDE, Long.MAX_VALUE);
+        }
+    }
+
+    static int capacityFor(final int requestedCapacity) {
+        if (requestedCapacity >= MAX_CAPACITY) {
+            return MAX_CAPACITY;
+        }
+        final int capacity = Integer.highestOneBit(requestedCapacity);
+        return capacity == requestedCapacity ? capacity : capacity << 1;
+    }
+
+    /**
+     * Publish a message to the ring buffer and apply the {@link OverflowPolicy} if it is full.
+     *
+     * @return false if the message was not published (rejected by the overflow policy or shut down)
+     */
+    boolean publish(final AuditMessage msg) {
+
+        if (offer(msg)) {
+            return true;
+        }
+
+        if (!running) {
+            return false;
+        }
+
+        switch (overflowPolicy) {
+        case DROP_OLDEST:
+            return publishDroppingOldest(msg);
+        case BLOCK:
+            return publishBlocking(msg);
+        case SPILL:
+            logOverflow();
+            // the spill writer appends it, if it can not keep up with the disk the message is dropped
+            if (spillHandoff.offer(msg)) {
+                return true;
+            }
+            droppedNewest.increment();
+            return false;
+        case DROP_NEWEST:
+        default:
+            droppedNewest.increment();
+            logOverflow();
+            return false;
+        }
+    }
+
+    private boolean publishDroppingOldest(final AuditMessage msg) {
+        while (running) {
+            if (poll() != null) {
+                droppedOldest.increment();
+                logOverflow();
+            }
+
+            if (offer(msg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean publishBlocking(final AuditMessage msg) {
+        final long deadline = System.nanoTime() + blockTimeoutNanos;
+        blocked.increment();
+
+        for (;;) {
+            if (!running) {
+                return false;
+            }
+
+            if (System.nanoTime() - deadline >= 0) {
+                blockTimeouts.increment();
+                logOverflow();
+                return false;
+            }
+
+            LockSupport.parkNanos(this, OVERFLOW_PARK_NANOS);
+
+            if (offer(msg)) {
+                return true;
+            }
+        }
+    }
+
+    private void logOverflow() {
+        final long now = System.nanoTime();
+        final long last = lastOverflowLog.get();
+
+        if (now - last >= OVERFLOW_LOG_INTERVAL_NANOS && lastOverflowLog.compareAndSet(last, now)) {
+            log.warn("Audit log ring buffer for delegate '{}' is full (capacity: {}, overflow policy: {}). {}", sink.getClass().getSimpleName(),
+                    capacity(), overflowPolicy, overflowStats());
+        }
+    }
+
+    String overflowStats() {
+        return "Dropped newest: " + droppedNewest.sum() + ", dropped oldest: " + droppedOldest.sum() + ", blocked: " + blocked.sum()
+                + ", block timeouts: " + blockTimeouts.sum() + ", spilled: " + spilled.sum() + ", replayed: " + replayed.sum();
+    }
+
+    /**
+     * @return a snapshot of the overflow counters by name
+     */
+    Map<String, Long> getOverflowCounters() {
+        final Map<String, Long> counters = new LinkedHashMap<String, Long>(8);
+        counters.put("dropped_newest", droppedNewest.sum());
+        counters.put("dropped_oldest", droppedOldest.sum());
+        counters.put("blocked", blocked.sum());
+        counters.put("block_timeouts", blockTimeouts.sum());
+        counters.put("spilled", spilled.sum());
+        counters.put("replayed", replayed.sum());
+        return counters;
+    }
+
+    long getDroppedNewest() {
+        return droppedNewest.sum();
+    }
+
+    long getDroppedOldest() {
+        return droppedOldest.sum();
+    }
+
+    long getBlocked() {
+        return blocked.sum();
+    }
+
+    long getBlockTimeouts() {
+        return blockTimeouts.sum();
+    }
+
+    long getSpilled() {
+        return spilled.sum();
+    }
+
+    long getReplayed() {
+        return replayed.sum();
+    }
+
+    /**
+     * Publish a message to the ring buffer. Never blocks.
+     *
+     * @return false if the ring buffer is full or already shut down
+     */
+    boolean offer(final AuditMessage msg) {
+        return offerAt(msg) >= 0;
+    }
+
+    /**
+     * Publish a message to the ring buffer. Never blocks.
+     *
+     * @return the sequence of the message or -1 if the ring buffer is full or already shut down
+     */
+    private long offerAt(final AuditMessage msg) {
+
+        if (!running) {
+            return -1;
+        }
+
+        if (!started.get()) {
+            startConsumers();
+        }
+
+        long pos = cursors.get(PRODUCER_CURSOR);
+
+        for (;;) {
+            final int index = (int) pos & mask;
+            final long diff = sequences.get(index) - pos;
+
+            if (diff == 0) {
+                if (cursors.compareAndSet(PRODUCER_CURSOR, pos, pos + 1)) {
+                    slots[index] = msg;
+                    sequences.lazySet(index, pos + 1);
+
+                    if (waitStrategy == WaitStrategy.BLOCKING && !parkedConsumers.isEmpty()) {
+                        LockSupport.unpark(parkedConsumers.poll());
+                    }
+
+                    return pos;
+                }
+            } else if (diff < 0) {
+                // consumers did not yet free the slot a full lap ago
+                return -1;
+            }
+
+            pos = cursors.get(PRODUCER_CURSOR);
+        }
+    }
+
+    /**
+     * Remove the oldest published message.
+     *
+     * @return the message or null if the ring buffer is empty
+     */
+    AuditMessage poll() {
+
+        long pos = cursors.get(CONSUMER_CURSOR);
+
+        for (;;) {
+            final int index = (int) pos & mask;
+            final long diff = sequences.get(index) - (pos + 1);
+
+            if (diff == 0) {
+                if (cursors.compareAndSet(CONSUMER_CURSOR, pos, pos + 1)) {
+                    final AuditMessage msg = slots[index];
+                    slots[index] = null;
+                    sequences.lazySet(index, pos + mask + 1);
+                    return msg;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+
+            pos = cursors.get(CONSUMER_CURSOR);
+        }
+    }
+
+    /**
+     * @return the lowest sequence which was possibly not yet stored, all messages before it were stored (or dropped)
+     */
+    long storedBefore() {
+        // read the cursor first, a consumer announces its lower bound before it moves the cursor
+        long min = cursors.get(CONSUMER_CURSOR);
+
+        for (int i = 0; i < consumers.length; i++) {
+            min = Math.min(min, inFlight.get(i * IN_FLIGHT_STRIDE));
+        }
+
+        return min;
+    }
+
+    /**
+     * Remove a message which was neither stored nor spilled, the ring buffer must be terminated.
+     *
+     * @return the message or null if nothing is left
+     */
+    AuditMessage pollUnstored() {
+        final AuditMessage msg = poll();
+
+        if (msg != null || spillHandoff == null) {
+            return msg;
+        }
+
+        return spillHandoff.poll();
+    }
+
+    int size() {
+        final long size = cursors.get(PRODUCER_CURSOR) - cursors.get(CONSUMER_CURSOR);
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Reject new messages, the consumers terminate once the ring buffer is drained.
+     */
+    void shutdown() {
+        running = false;
+        wakeUpConsumers();
+    }
+
+    /**
+     * Reject new messages and let the consumers terminate after their current message.
+     * Messages not yet consumed stay in the ring buffer and can be obtained via {@link #poll()}.
+     */
+    void shutdownNow() {
+        running = false;
+        aborted = true;
+        wakeUpConsumers();
+    }
+
+    boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+        final Thread[] startedConsumers;
+
+        synchronized (consumers) {
+            startedConsumers = Arrays.copyOf(consumers, consumers.length + 2);
+            startedConsumers[consumers.length] = replayer;
+            startedConsumers[consumers.length + 1] = spillWriter;
+        }
+
+        for (final Thread consumer : startedConsumers) {
+            if (consumer == null) {
+                continue;
+            }
+
+            final long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+
+            if (remainingMillis > 0) {
+                consumer.join(remainingMillis);
+            }
+
+            if (consumer.isAlive()) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Start the consumers (and the spill writer and replayer) without waiting for the first message, e.g. to replay spilled messages.
+     */
+    void start() {
+        if (!started.get()) {
+            startConsumers();
+        }
+    }
+
+    private void startConsumers() {
+        synchronized (consumers) {
+            if (!running || !started.compareAndSet(false, true)) {
+                return;
+            }
+
+            for (int i = 0; i < consumers.length; i++) {
+                final int index = i;
+                final Thread consumer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        consume(index);
+                    }
+                }, "searchguard_audit_" + sink.getClass().getSimpleName() + "_" + i);
+                consumer.setDaemon(true);
+                consumer.start();
+                consumers[i] = consumer;
+            }
+
+            if (spillQueue != null) {
+                spillWriter = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeSpilled();
+                    }
+                }, "searchguard_audit_" + sink.getClass().getSimpleName() + "_spill_writer");
+                spillWriter.setDaemon(true);
+                spillWriter.start();
+
+                replayer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        replay();
+                    }
+                }, "searchguard_audit_" + sink.getClass().getSimpleName() + "_replayer");
+                replayer.setDaemon(true);
+                replayer.start();
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Started {} consumers for ring buffer with capacity {} and wait strategy {}", consumers.length, capacity(),
+                        waitStrategy);
+            }
+        }
+    }
+
+    private void wakeUpConsumers() {
+        synchronized (consumers) {
+            for (final Thread consumer : consumers) {
+                if (consumer != null) {
+                    LockSupport.unpark(consumer);
+                }
+            }
+
+            if (replayer != null) {
+                LockSupport.unpark(replayer);
+            }
+        }
+    }
+
+    private void consume(final int index) {
+        final int slot = index * IN_FLIGHT_STRIDE;
+        int idleCounter = 0;
+
+        while (!aborted) {
+            // a lower bound of the sequence polled next, see storedBefore()
+            inFlight.lazySet(slot, cursors.get(CONSUMER_CURSOR));
+            final AuditMessage msg = poll();
+
+            if (msg != null) {
+                idleCounter = 0;
+                store(msg);
+                inFlight.lazySet(slot, Long.MAX_VALUE);
+                continue;
+            }
+
+            inFlight.lazySet(slot, Long.MAX_VALUE);
+
+            if (!running) {
+                // shutdown and drained
+                return;
+            }
+
+            idleCounter = idle(idleCounter);
+        }
+    }
+
+    private void writeSpilled() {
+        for (;;) {
+            final AuditMessage msg;
+
+            try {
+                msg = spillHandoff.poll(REPLAY_INTERVAL_NANOS, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            if (msg == null) {
+                if (!running) {
+                    // a message handed over after this check is obtained via pollUnstored()
+                    return;
+                }
+                continue;
+            }
+
+            try {
+                if (spillQueue.append(msg)) {
+                    spilled.increment();
+                    continue;
+                }
+            } catch (Exception e) {
+                log.error("Unable to spill audit message due to {}", e.toString(), e);
+            }
+
+            droppedNewest.increment();
+        }
+    }
+
+    private void replay() {
+        AuditMessage pending = null;
+        long lastSequence = -1;
+        // read position which is committed once the message with uncommittedSequence was stored and delivered
+        AuditMessageSpillQueue.Offset uncommitted = null;
+        long uncommittedSequence = -1;
+        // failed deliveries of the sink before anything was polled since the last commit
+        long failures = sink.getFailures();
+        boolean polled = false;
+
+        while (running) {
+            boolean progress = false;
+
+            if (sink.getFailures() != failures) {
+                if (polled) {
+                    // the failed messages may be ones replayed since the last commit
+                    log.debug("Audit log sink '{}' failed to deliver messages, replay spilled messages from the last committed position",
+                            sink.getClass().getSimpleName());
+                    spillQueue.rewind();
+                    pending = null;
+                    lastSequence = -1;
+                    uncommitted = null;
+                    polled = false;
+                }
+                failures = sink.getFailures();
+            }
+
+            // leave room for new messages, otherwise the replay itself causes overflows
+            while (running && size() < capacity() / 2 && sink.isHealthy()) {
+                if (pending == null && (pending = spillQueue.poll()) == null) {
+                    break;
+                }
+
+                polled = true;
+
+                final long sequence = offerAt(pending);
+
+                if (sequence < 0) {
+                    break;
+                }
+
+                pending = null;
+                lastSequence = sequence;
+                progress = true;
+                replayed.increment();
+            }
+
+            // isDrained() before getFailures(), a sink reports a failure before the delivery completes
+            if (uncommitted != null && storedBefore() > uncommittedSequence && sink.isDrained() && sink.getFailures() == failures) {
+                spillQueue.commit(uncommitted);
+                uncommitted = null;
+                polled = lastSequence >= 0 || pending != null;
+            }
+
+            // a polled but not yet published message must not be committed
+            if (uncommitted == null && lastSequence >= 0 && pending == null) {
+                uncommitted = spillQueue.offset();
+                uncommittedSequence = lastSequence;
+                lastSequence = -1;
+            }
+
+            if (!progress) {
+                LockSupport.parkNanos(this, REPLAY_INTERVAL_NANOS);
+            }
+        }
+
+        if (polled) {
+            // not known to be delivered, replayed again after a restart
+            spillQueue.rewind();
+        }
+    }
+
+    private void store(final AuditMessage msg) {
+        try {
+            sink.store(msg);
+            if (log.isTraceEnabled()) {
+                log.trace("stored on delegate {} asynchronously", sink.getClass().getSimpleName());
+            }
+        } catch (Exception e) {
+            log.error("Unable to store audit message on delegate '{}' due to '{}'", sink.getClass().getSimpleName(), e.toString(), e);
+            sink.deliveryFailed();
+        }
+    }
+
+    private int idle(final int counter) {
+        switch (waitStrategy) {
+        case BUSY_SPIN:
+            return counter;
+        case YIELDING:
+            if (counter >= SPIN_TRIES) {
+                Thread.yield();
+                return counter;
+            }
+            return counter + 1;
+        case SLEEPING:
+            if (counter >= SPIN_TRIES + YIELD_TRIES) {
+                LockSupport.parkNanos(this, SLEEP_NANOS);
+                return counter;
+            } else if (counter >= SPIN_TRIES) {
+                Thread.yield();
+            }
+            return counter + 1;
+        case BLOCKING:
+        default:
+            if (counter < SPIN_TRIES) {
+                return counter + 1;
+            }
+            final Thread current = Thread.currentThread();
+            parkedConsumers.offer(current);
+            // re-check after registering, a producer which published in between may have missed us.
+            // The timeout bounds the latency of such a lost wake up.
+            if (running && size() == 0) {
+                LockSupport.parkNanos(this, BLOCKING_TIMEOUT_NANOS);
+            }
+            parkedConsumers.remove(current);
+            return 0;
+        }
+    }
+
+    /**
+     * Defines how consumer threads wait for new messages once the ring buffer is empty.
+     */
+    enum WaitStrategy {
+        /** Spin on the ring buffer, lowest latency but burns one core per consumer */
+        BUSY_SPIN,
+        /** Spin for a while and then yield the CPU */
+        YIELDING,
+        /** Spin, yield and then park for a short interval. Producers are never involved */
+        SLEEPING,
+        /** Park until a producer signals a new message (or a short timeout elapses) */
+        BLOCKING;
+    }
+
+    /**
+     * Defines what happens to a message which is published while the ring buffer is full.
+     */
+    enum OverflowPolicy {
+        /** Reject the new message */
+        DROP_NEWEST,
+        /** Evict the oldest queued message to make room, memory usage stays flat under sustained overload */
+        DROP_OLDEST,
+        /** Block the producing thread until there is room again or the block timeout elapsed */
+        BLOCK,
+        /**
+         * Append the new message to the disk backed spill queue, it is replayed once there is room again and the sink delivers
+         * messages again. Spilled messages are kept until the sink confirmed their delivery, so they are possibly replayed twice
+         * after a failed delivery or a restart. A sink which never becomes idle under sustained load defers this confirmation,
+         * so the spill queue may reach its maximum size and reject new messages meanwhile.
+         */
+        SPILL;
+    }
+}
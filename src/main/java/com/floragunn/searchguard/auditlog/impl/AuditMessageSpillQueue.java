@@ -0,0 +1,483 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * Append only, disk backed queue for audit messages which do not fit into the
+ * {@link AuditMessageRingBuffer} because the sink is slow or unavailable.
+ * <p>
+ * Messages are appended as {@code [length][crc32][json]} records to numbered segment files.
+ * Appends are forced to disk every {@code fsyncBatchSize} records, a segment is rotated once it
+ * reaches {@code segmentBytes} and segments are deleted once the committed read position moved past them.
+ * The total size of all segments never exceeds {@code maxBytes}, further appends are rejected.
+ * <p>
+ * The read position is persisted in an offset file via an atomic rename on {@link #commit(Offset)}. Callers commit
+ * an {@link Offset} only after the messages polled up to it were stored, so after a crash or restart reading
+ * resumes at the first record which was possibly not stored (at least once delivery). {@link #rewind()} does the
+ * same without a restart, e.g. if the sink failed to deliver the messages polled since the last commit.
+ * Records which were torn or corrupted are detected by their checksum and skipped together with
+ * the rest of their segment. After a restart appends always go to a new segment.
+ */
+final class AuditMessageSpillQueue implements Closeable {
+
+    private static final String SEGMENT_PREFIX = "audit-spill-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String OFFSET_FILE = "audit-spill.offset";
+    private static final int HEADER_BYTES = 8;
+    private static final int OFFSET_BYTES = 16;
+
+    private final Logger log = LogManager.getLogger(this.getClass());
+    private final Path directory;
+    private final long maxBytes;
+    private final long segmentBytes;
+    private final int fsyncBatchSize;
+    // segment number -> size in bytes, the last entry is the segment currently written to
+    private final TreeMap<Long, Long> segments = new TreeMap<Long, Long>();
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+
+    private long totalBytes;
+    private long writeSegment;
+    private long writePosition;
+    private FileChannel writeChannel;
+    private int unsynced;
+
+    private long readSegment;
+    private long readPosition;
+    private FileChannel readChannel;
+    private long committedSegment = -1;
+    private long committedPosition = -1;
+    private boolean closed;
+
+    AuditMessageSpillQueue(final Path directory, final long maxBytes, final long segmentBytes, final int fsyncBatchSize) throws IOException {
+        if (maxBytes <= 0 || segmentBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes and segmentBytes must be greater than 0");
+        }
+
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.segmentBytes = Math.min(segmentBytes, maxBytes);
+        this.fsyncBatchSize = Math.max(1, fsyncBatchSize);
+
+        Files.createDirectories(directory);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (final Path segment : stream) {
+                final String fileName = segment.getFileName().toString();
+                try {
+                    final long number = Long.parseLong(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+                    segments.put(number, Files.size(segment));
+                } catch (NumberFormatException e) {
+                    log.warn("Ignore unexpected file {} in audit log spill directory", segment);
+                }
+            }
+        }
+
+        readOffset();
+
+        // segments which were completely consumed before a crash
+        while (!segments.isEmpty() && segments.firstKey() < readSegment) {
+            Files.deleteIfExists(segmentPath(segments.pollFirstEntry().getKey()));
+        }
+
+        if (segments.isEmpty() || segments.firstKey() > readSegment) {
+            readPosition = 0;
+        }
+
+        for (final long size : segments.values()) {
+            totalBytes += size;
+        }
+
+        // never append to a segment which may end with a torn record
+        writeSegment = segments.isEmpty() ? Math.max(readSegment, 0) : segments.lastKey() + 1;
+        openWriteSegment();
+
+        if (segments.size() > 1) {
+            readSegment = segments.firstKey();
+            log.info("Found {} bytes of spilled audit messages in {}", totalBytes, directory);
+        } else {
+            readSegment = writeSegment;
+            readPosition = 0;
+        }
+    }
+
+    /**
+     * Serialize and append a message.
+     *
+     * @return false if the queue is full, closed or the message could not be written
+     */
+    boolean append(final AuditMessage msg) {
+        return appendRecord(BytesReference.toBytes(msg.toBytes()));
+    }
+
+    /**
+     * Remove and deserialize the oldest message. The removal is only persisted by a {@link #commit(Offset)}.
+     *
+     * @return the message or null if the queue is empty
+     */
+    AuditMessage poll() {
+        byte[] record;
+
+        while ((record = pollRecord()) != null) {
+            try {
+                final Map<String, Object> auditInfo = XContentHelper.convertToMap(new BytesArray(record), false, XContentType.JSON).v2();
+                return new AuditMessage(auditInfo);
+            } catch (Exception e) {
+                log.warn("Skip spilled audit message which can not be parsed due to {}", e.toString());
+            }
+        }
+
+        return null;
+    }
+
+    synchronized boolean appendRecord(final byte[] record) {
+        final long recordBytes = HEADER_BYTES + record.length;
+
+        if (closed || totalBytes + recordBytes > maxBytes) {
+            return false;
+        }
+
+        try {
+            if (writePosition > 0 && writePosition + recordBytes > segmentBytes) {
+                rotate();
+            }
+
+            crc.reset();
+            crc.update(record, 0, record.length);
+            header.clear();
+            header.putInt(record.length).putInt((int) crc.getValue());
+            header.flip();
+
+            final ByteBuffer[] buffers = new ByteBuffer[] { header, ByteBuffer.wrap(record) };
+            while (buffers[1].hasRemaining()) {
+                writeChannel.write(buffers);
+            }
+
+            writePosition += recordBytes;
+            totalBytes += recordBytes;
+            segments.put(writeSegment, writePosition);
+
+            if (++unsynced >= fsyncBatchSize) {
+                sync();
+            }
+
+            return true;
+        } catch (IOException e) {
+            log.error("Unable to spill audit message to {} due to {}", segmentPath(writeSegment), e.toString(), e);
+            try {
+                // drop a partially written record
+                writeChannel.truncate(writePosition);
+            } catch (IOException e1) {
+                log.warn("Unable to truncate {} due to {}", segmentPath(writeSegment), e1.toString());
+            }
+            return false;
+        }
+    }
+
+    synchronized byte[] pollRecord() {
+        while (!closed) {
+            final long segmentSize = segments.get(readSegment);
+
+            if (readPosition + HEADER_BYTES <= segmentSize) {
+                try {
+                    final byte[] record = readRecord(segmentSize);
+                    if (record != null) {
+                        return record;
+                    }
+                } catch (IOException e) {
+                    log.error("Unable to read spilled audit messages from {} due to {}", segmentPath(readSegment), e.toString(), e);
+                }
+
+                log.warn("Skip {} bytes of corrupted spilled audit messages in {}", segmentSize - readPosition, segmentPath(readSegment));
+                readPosition = segmentSize;
+            }
+
+            if (readSegment == writeSegment) {
+                return null;
+            }
+
+            // the segment is deleted once a commit moved past it
+            if (readChannel != null) {
+                try {
+                    readChannel.close();
+                } catch (IOException e) {
+                    log.warn("Unable to close {} due to {}", segmentPath(readSegment), e.toString());
+                }
+                readChannel = null;
+            }
+
+            readSegment = segments.higherKey(readSegment);
+            readPosition = 0;
+        }
+
+        return null;
+    }
+
+    private byte[] readRecord(final long segmentSize) throws IOException {
+        if (readChannel == null) {
+            readChannel = FileChannel.open(segmentPath(readSegment), StandardOpenOption.READ);
+        }
+
+        header.clear();
+        readFully(readChannel, header, readPosition);
+        header.flip();
+
+        final int length = header.getInt();
+        final int checksum = header.getInt();
+
+        if (length < 0 || readPosition + HEADER_BYTES + length > segmentSize) {
+            return null;
+        }
+
+        final byte[] record = new byte[length];
+        readFully(readChannel, ByteBuffer.wrap(record), readPosition + HEADER_BYTES);
+
+        crc.reset();
+        crc.update(record, 0, length);
+
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        readPosition += HEADER_BYTES + length;
+        return record;
+    }
+
+    /**
+     * @return the current read position, i.e. the position right after the last polled record
+     */
+    synchronized Offset offset() {
+        return new Offset(readSegment, readPosition);
+    }
+
+    /**
+     * Persist the current read position. Only safe once every polled message was stored or appended again.
+     */
+    synchronized void commit() {
+        commit(new Offset(readSegment, readPosition));
+    }
+
+    /**
+     * Persist a read position obtained from {@link #offset()} and delete the segments before it.
+     */
+    synchronized void commit(final Offset offset) {
+        if (closed) {
+            return;
+        }
+
+        try {
+            writeOffset(offset);
+        } catch (IOException e) {
+            log.error("Unable to persist audit log spill offset in {} due to {}", directory, e.toString(), e);
+            return;
+        }
+
+        // the offset must never point to a deleted segment, so delete only after it was persisted
+        while (segments.firstKey() < offset.segment) {
+            final long number = segments.firstKey();
+            try {
+                Files.deleteIfExists(segmentPath(number));
+            } catch (IOException e) {
+                log.error("Unable to delete spilled audit messages in {} due to {}", segmentPath(number), e.toString(), e);
+                return;
+            }
+            totalBytes -= segments.remove(number);
+        }
+    }
+
+    /**
+     * Move the read position back to the last committed one, so the messages polled since then are polled again.
+     */
+    synchronized void rewind() {
+        if (closed) {
+            return;
+        }
+
+        long segment = committedSegment;
+        long position = committedPosition;
+
+        // nothing committed yet or the committed segment was deleted on startup
+        if (segment < segments.firstKey() || !segments.containsKey(segment)) {
+            segment = segments.firstKey();
+            position = 0;
+        }
+
+        if (segment != readSegment && readChannel != null) {
+            try {
+                readChannel.close();
+            } catch (IOException e) {
+                log.warn("Unable to close {} due to {}", segmentPath(readSegment), e.toString());
+            }
+            readChannel = null;
+        }
+
+        readSegment = segment;
+        readPosition = position;
+    }
+
+    synchronized boolean isEmpty() {
+        return readSegment == writeSegment && readPosition >= writePosition;
+    }
+
+    synchronized long sizeInBytes() {
+        return totalBytes;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Persists the current read position like {@link #commit()}, so every polled message must have been
+     * stored or appended again before.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+
+        try {
+            sync();
+            writeOffset(new Offset(readSegment, readPosition));
+        } finally {
+            closed = true;
+
+            if (readChannel != null) {
+                readChannel.close();
+            }
+
+            writeChannel.close();
+        }
+    }
+
+    private void rotate() throws IOException {
+        sync();
+        writeChannel.close();
+        writeSegment++;
+        openWriteSegment();
+    }
+
+    private void openWriteSegment() throws IOException {
+        writeChannel = FileChannel.open(segmentPath(writeSegment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        writePosition = 0;
+        unsynced = 0;
+        segments.put(writeSegment, 0L);
+    }
+
+    private void sync() throws IOException {
+        if (unsynced > 0) {
+            writeChannel.force(false);
+            unsynced = 0;
+        }
+    }
+
+    private void readOffset() throws IOException {
+        final Path offsetFile = directory.resolve(OFFSET_FILE);
+
+        if (!Files.exists(offsetFile)) {
+            readSegment = segments.isEmpty() ? 0 : segments.firstKey();
+            readPosition = 0;
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(offsetFile, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(OFFSET_BYTES);
+            readFully(channel, buffer, 0);
+            buffer.flip();
+            readSegment = buffer.getLong();
+            readPosition = buffer.getLong();
+            committedSegment = readSegment;
+            committedPosition = readPosition;
+        }
+    }
+
+    private void writeOffset(final Offset offset) throws IOException {
+        if (offset.segment == committedSegment && offset.position == committedPosition) {
+            return;
+        }
+
+        final Path tmpFile = directory.resolve(OFFSET_FILE + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(OFFSET_BYTES);
+            buffer.putLong(offset.segment).putLong(offset.position);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+
+        Files.move(tmpFile, directory.resolve(OFFSET_FILE), StandardCopyOption.ATOMIC_MOVE);
+        committedSegment = offset.segment;
+        committedPosition = offset.position;
+    }
+
+    private Path segmentPath(final long number) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long position) throws IOException {
+        long offset = position;
+
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, offset);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file " + channel);
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * A read position, see {@link AuditMessageSpillQueue#offset()}.
+     */
+    static final class Offset {
+        private final long segment;
+        private final long position;
+
+        private Offset(final long segment, final long position) {
+            this.segment = segment;
+            this.position = position;
+        }
+
+        @Override
+        public String toString() {
+            return segment + ":" + position;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Formats audit timestamps as {@code yyyy-MM-dd'T'HH:mm:ss.SSSZZ} in UTC. The part up to the seconds is
+ * formatted once per second and shared, within the same second only the milliseconds are filled in.
+ */
+final class AuditTimestampFormatter {
+
+    private static final DateTimeFormatter FORMAT = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZZ").withZoneUTC();
+    private static volatile FormattedSecond current = new FormattedSecond(Long.MIN_VALUE, "", "");
+
+    private AuditTimestampFormatter() {
+    }
+
+    static String format(final long millis) {
+        final long second = Math.floorDiv(millis, 1000);
+        FormattedSecond formatted = current;
+
+        if (formatted.second != second) {
+            formatted = FormattedSecond.of(second);
+            current = formatted;
+        }
+
+        final int ms = (int) Math.floorMod(millis, 1000);
+
+        return new StringBuilder(formatted.prefix.length() + 3 + formatted.suffix.length())
+                .append(formatted.prefix)
+                .append((char) ('0' + ms / 100))
+                .append((char) ('0' + ms / 10 % 10))
+                .append((char) ('0' + ms % 10))
+                .append(formatted.suffix)
+                .toString();
+    }
+
+    private static final class FormattedSecond {
+
+        final long second;
+        final String prefix;
+        final String suffix;
+
+        private FormattedSecond(final long second, final String prefix, final String suffix) {
+            this.second = second;
+            this.prefix = prefix;
+            this.suffix = suffix;
+        }
+
+        static FormattedSecond of(final long second) {
+            // e.g. 2017-06-01T12:34:56.000+00:00, the zone never contains a dot
+            final String formatted = FORMAT.print(second * 1000);
+            final int millisStart = formatted.lastIndexOf('.') + 1;
+            return new FormattedSecond(second, formatted.substring(0, millisStart), formatted.substring(millisStart + 3));
+        }
+    }
+}
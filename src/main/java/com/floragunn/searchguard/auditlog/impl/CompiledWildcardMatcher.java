@@ -0,0 +1,149 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.floragunn.searchguard.support.WildcardMatcher;
+
+/**
+ * A list of patterns with the semantics of {@link WildcardMatcher#matchAny(Collection, String)}, compiled once:
+ * literal patterns go into a hash set, all {@code *} and {@code ?} wildcards are combined into a single regex
+ * and {@code /regex/} patterns are precompiled. Results for classes (matched by their simple name) are cached.
+ */
+final class CompiledWildcardMatcher {
+
+    private static final Logger log = LogManager.getLogger(CompiledWildcardMatcher.class);
+    static final CompiledWildcardMatcher NONE = new CompiledWildcardMatcher(Collections.<String>emptyList());
+
+    private final List<String> patterns;
+    private final Set<String> literals = new HashSet<String>();
+    private final Pattern wildcards;
+    private final Pattern[] regexes;
+    private final boolean empty;
+    private final ClassValue<Boolean> classMatches = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return matches(type.getSimpleName());
+        }
+    };
+
+    private CompiledWildcardMatcher(final Collection<String> patterns) {
+        this.patterns = new ArrayList<String>(patterns);
+        final StringBuilder combined = new StringBuilder();
+        final List<Pattern> regexes = new ArrayList<Pattern>();
+
+        for (final String pattern : patterns) {
+            if (pattern == null) {
+                continue;
+            }
+
+            if (pattern.length() > 1 && pattern.startsWith("/") && pattern.endsWith("/")) {
+                // kept separate, the groups of a user supplied regex must not be renumbered
+                try {
+                    regexes.add(Pattern.compile(pattern.substring(1, pattern.length() - 1)));
+                } catch (final PatternSyntaxException e) {
+                    log.error("Invalid regular expression {}, will be ignored: {}", pattern, e.getMessage());
+                }
+            } else if (pattern.indexOf('*') == -1 && pattern.indexOf('?') == -1) {
+                literals.add(pattern);
+            } else {
+                if (combined.length() > 0) {
+                    combined.append('|');
+                }
+                appendWildcard(combined, pattern);
+            }
+        }
+
+        this.wildcards = combined.length() > 0 ? Pattern.compile(combined.toString(), Pattern.DOTALL) : null;
+        this.regexes = regexes.toArray(new Pattern[regexes.size()]);
+        this.empty = literals.isEmpty() && wildcards == null && this.regexes.length == 0;
+    }
+
+    static CompiledWildcardMatcher compile(final Collection<String> patterns) {
+        return patterns == null || patterns.isEmpty() ? NONE : new CompiledWildcardMatcher(patterns);
+    }
+
+    boolean isEmpty() {
+        return empty;
+    }
+
+    boolean matches(final String candidate) {
+        if (empty || candidate == null) {
+            return false;
+        }
+
+        if (literals.contains(candidate)) {
+            return true;
+        }
+
+        if (wildcards != null && wildcards.matcher(candidate).matches()) {
+            return true;
+        }
+
+        for (final Pattern regex : regexes) {
+            if (regex.matcher(candidate).matches()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return true if the simple name of the class matches, the result is computed once per class
+     */
+    boolean matchesSimpleName(final Class<?> clazz) {
+        return !empty && clazz != null && classMatches.get(clazz).booleanValue();
+    }
+
+    @Override
+    public String toString() {
+        return patterns.toString();
+    }
+
+    private static void appendWildcard(final StringBuilder regex, final String pattern) {
+        regex.append("(?:");
+        int literalStart = 0;
+
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+
+            if (c == '*' || c == '?') {
+                if (i > literalStart) {
+                    regex.append(Pattern.quote(pattern.substring(literalStart, i)));
+                }
+                regex.append(c == '*' ? ".*" : ".");
+                literalStart = i + 1;
+            }
+        }
+
+        if (literalStart < pattern.length()) {
+            regex.append(Pattern.quote(pattern.substring(literalStart)));
+        }
+
+        regex.append(')');
+    }
+}
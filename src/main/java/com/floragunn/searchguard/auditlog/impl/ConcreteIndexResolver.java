@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.service.ClusterService;
+
+/**
+ * Resolves the index expressions of audited requests to concrete index names like
+ * {@link IndexNameExpressionResolver#concreteIndexNames} with {@link IndicesOptions#lenientExpandOpen()}.
+ * <p>
+ * Names of open indices are returned as they are. Everything else (wildcards, aliases, date math, _all) is
+ * resolved once per metadata version and cached, e.g. for the items of a bulk request which all use the same
+ * expression. The cache is bounded and cleared when full.
+ */
+final class ConcreteIndexResolver {
+
+    private static final String[] EMPTY = new String[0];
+    private static final int MAX_CACHED_EXPRESSIONS = 1000;
+
+    private final IndexNameExpressionResolver resolver;
+    private final ClusterService clusterService;
+    private volatile Resolved resolved = new Resolved(Long.MIN_VALUE);
+
+    ConcreteIndexResolver(final IndexNameExpressionResolver resolver, final ClusterService clusterService) {
+        this.resolver = resolver;
+        this.clusterService = clusterService;
+    }
+
+    String[] resolve(final String[] indices) {
+        if (resolver == null) {
+            return EMPTY;
+        }
+
+        final ClusterState state = clusterService.state();
+        final MetaData metaData = state.metaData();
+        final String[] concreteIndices = openIndices(metaData, indices);
+
+        if (concreteIndices != null) {
+            return concreteIndices;
+        }
+
+        Resolved current = resolved;
+
+        if (current.metaDataVersion != metaData.version()) {
+            current = new Resolved(metaData.version());
+            resolved = current;
+        }
+
+        String[] resolvedIndices = current.expressions.get(Arrays.asList(indices));
+
+        if (resolvedIndices == null) {
+            resolvedIndices = resolver.concreteIndexNames(state, IndicesOptions.lenientExpandOpen(), indices);
+
+            if (current.expressions.size() >= MAX_CACHED_EXPRESSIONS) {
+                current.expressions.clear();
+            }
+
+            current.expressions.put(Arrays.asList(indices.clone()), resolvedIndices);
+        }
+
+        // the array ends up in audit messages, do not share it
+        return resolvedIndices.clone();
+    }
+
+    /**
+     * @return the given names if all of them are names of open indices, null if the resolver is needed
+     */
+    private static String[] openIndices(final MetaData metaData, final String[] indices) {
+        if (indices.length == 0) {
+            // means all indices
+            return null;
+        }
+
+        for (final String index : indices) {
+            if (index == null || index.isEmpty() || index.indexOf('*') >= 0 || "_all".equals(index)) {
+                return null;
+            }
+
+            // date math or exclusion
+            final char first = index.charAt(0);
+            if (first == '<' || first == '-' || first == '+') {
+                return null;
+            }
+
+            // aliases, closed and missing indices
+            final IndexMetaData indexMetaData = metaData.index(index);
+            if (indexMetaData == null || indexMetaData.getState() != IndexMetaData.State.OPEN) {
+                return null;
+            }
+        }
+
+        if (indices.length == 1) {
+            return indices.clone();
+        }
+
+        final Set<String> unique = new LinkedHashSet<String>(Arrays.asList(indices));
+        return unique.toArray(new String[unique.size()]);
+    }
+
+    private static final class Resolved {
+
+        final long metaDataVersion;
+        final ConcurrentMap<List<String>, String[]> expressions = new ConcurrentHashMap<List<String>, String[]>();
+
+        Resolved(final long metaDataVersion) {
+            this.metaDataVersion = metaDataVersion;
+        }
+    }
+}
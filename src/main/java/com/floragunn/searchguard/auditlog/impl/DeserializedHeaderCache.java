@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import com.floragunn.searchguard.support.Base64Helper;
+
+/**
+ * Caches what is extracted from Base64 serialized thread context headers (like the user or the remote address
+ * sent along by another node) by the raw header value, so that the same value is deserialized only once.
+ * The cache is bounded and cleared when full.
+ * <p>
+ * Only immutable values should be cached, they are shared between all threads.
+ */
+final class DeserializedHeaderCache<T> {
+
+    private final int maxEntries;
+    private final Function<Object, T> extractor;
+    private final ConcurrentMap<String, T> values = new ConcurrentHashMap<String, T>();
+
+    DeserializedHeaderCache(final int maxEntries, final Function<Object, T> extractor) {
+        this.maxEntries = Math.max(1, maxEntries);
+        this.extractor = extractor;
+    }
+
+    /**
+     * @return the value extracted from the deserialized header, null if the header or the extracted value is null
+     */
+    T get(final String header) {
+        if (header == null) {
+            return null;
+        }
+
+        T value = values.get(header);
+
+        if (value == null) {
+            value = extractor.apply(Base64Helper.deserializeObject(header));
+
+            if (value != null) {
+                if (values.size() >= maxEntries) {
+                    values.clear();
+                }
+
+                values.put(header, value);
+            }
+        }
+
+        return value;
+    }
+
+    int size() {
+        return values.size();
+    }
+}
@@ -16,18 +16,24 @@ package com.floragunn.searchguard.auditlog.impl;
 
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
 
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
 import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.concurrent.ThreadContext.StoredContext;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.threadpool.ThreadPool;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
 
 import com.floragunn.searchguard.support.ConfigConstants;
 import com.floragunn.searchguard.support.HeaderHelper;
@@ -37,7 +43,9 @@ public final class ESAuditLog extends AuditLogSink {
     private final Client clientProvider;
     private final String index;
     private final String type;
-    private DateTimeFormatter indexPattern;
+    private RollingIndexName indexPattern;
+    private final BulkProcessor bulkProcessor;
+    private final ThreadPool.Cancellable bulkFlushTask;
 
     public ESAuditLog(final Settings settings, final Path configPath, final Client clientProvider, ThreadPool threadPool, String index, String type,
             final IndexNameExpressionResolver resolver, final ClusterService clusterService) {
@@ -46,16 +54,92 @@ public final class ESAuditLog extends AuditLogSink {
         this.index = index;
         this.type = type;
         try {
-            this.indexPattern = DateTimeFormat.forPattern(index);
+            this.indexPattern = RollingIndexName.forPattern(index);
         } catch (IllegalArgumentException e) {
             log.debug("Unable to parse index pattern due to {}. "
                     + "If you have no date pattern configured you can safely ignore this message", e.getMessage());
         }
+        
+        if (clientProvider != null && settings.getAsBoolean("searchguard.audit.config.bulk.enabled", false)) {
+            final int maxActions = settings.getAsInt("searchguard.audit.config.bulk.max_actions", 1000);
+            final ByteSizeValue maxSize = settings.getAsBytesSize("searchguard.audit.config.bulk.max_size", new ByteSizeValue(5, ByteSizeUnit.MB));
+            final TimeValue flushInterval = settings.getAsTime("searchguard.audit.config.bulk.flush_interval", TimeValue.timeValueSeconds(1));
+            final int concurrentRequests = settings.getAsInt("searchguard.audit.config.bulk.concurrent_requests", 1);
+            final RefreshPolicy refreshPolicy = RefreshPolicy.parse(settings.get("searchguard.audit.config.bulk.refresh_policy", "false"));
+            
+            // flushes (and therefore the bulk requests) are always triggered from within store(), flush() or close()
+            // so they run with the stashed context and the SG_CONF_REQUEST_HEADER set. This is why we do not use
+            // BulkProcessor.Builder.setFlushInterval() which flushes from a scheduler thread with an unknown context.
+            this.bulkProcessor = BulkProcessor.builder(clientProvider, new BulkProcessor.Listener() {
+                
+                @Override
+                public void beforeBulk(long executionId, BulkRequest request) {
+                    request.setRefreshPolicy(refreshPolicy);
+                    request.timeout(TimeValue.timeValueMinutes(1));
+                }
+                
+                @Override
+                public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                    if (response.hasFailures()) {
+                        log.error("Unable to index audit log bulk {} due to {}", executionId, response.buildFailureMessage());
+                        deliveryFailed();
+                    } else if (log.isTraceEnabled()) {
+                        log.trace("Indexed {} audit log messages in bulk {}", request.numberOfActions(), executionId);
+                    }
+                    deliveryCompleted(request.numberOfActions());
+                }
+                
+                @Override
+                public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+                    log.error("Unable to index audit log bulk {} with {} messages due to {}", executionId, request.numberOfActions(), failure.toString(), failure);
+                    deliveryFailed();
+                    deliveryCompleted(request.numberOfActions());
+                }
+            })
+            .setName("searchguard_audit")
+            .setBulkActions(maxActions)
+            .setBulkSize(maxSize)
+            .setConcurrentRequests(concurrentRequests)
+            .build();
+            
+            this.bulkFlushTask = threadPool.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushInterval, ThreadPool.Names.GENERIC);
+            
+            log.info("Bulk indexing enabled with maxActions: {}, maxSize: {}, flushInterval: {}, concurrentRequests: {}, refreshPolicy: {}", 
+                    maxActions, maxSize, flushInterval, concurrentRequests, refreshPolicy);
+        } else {
+            this.bulkProcessor = null;
+            this.bulkFlushTask = null;
+        }
     }
 
     @Override
     public void close() throws IOException {
-
+        if (bulkProcessor != null) {
+            bulkFlushTask.cancel();
+            
+            try(StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+                threadPool.getThreadContext().putHeader(ConfigConstants.SG_CONF_REQUEST_HEADER, "true");
+                if (!bulkProcessor.awaitClose(1, TimeUnit.MINUTES)) {
+                    log.error("Timeout while waiting for pending audit log bulk requests");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private void flush() {
+        try(StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+            threadPool.getThreadContext().putHeader(ConfigConstants.SG_CONF_REQUEST_HEADER, "true");
+            bulkProcessor.flush();
+        } catch (final Exception e) {
+            log.error("Unable to flush audit log bulk due to {}", e.toString(), e);
+        }
     }
     
     @Override
@@ -68,16 +152,30 @@ public final class ESAuditLog extends AuditLogSink {
             return;
         }
 
+        if (bulkProcessor != null) {
+            deliveryStarted(1);
+            try(StoredContext ctx = threadPool.getThreadContext().stashContext()) {
+                threadPool.getThreadContext().putHeader(ConfigConstants.SG_CONF_REQUEST_HEADER, "true");
+                bulkProcessor.add(new IndexRequest(getExpandedIndexName(indexPattern, index), type).source(msg.toBytes(), XContentType.JSON));
+            } catch (final Exception e) {
+                log.error("Unable to add audit log {} to bulk due to {}", msg, e.toString(), e);
+                deliveryFailed();
+                deliveryCompleted(1);
+            }
+            return;
+        }
+
         try(StoredContext ctx = threadPool.getThreadContext().stashContext()) {
             try {
                 final IndexRequestBuilder irb = clientProvider.prepareIndex(getExpandedIndexName(indexPattern, index), type)
                         .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
-                        .setSource(msg.getAsMap());
+                        .setSource(msg.toBytes(), XContentType.JSON);
                 threadPool.getThreadContext().putHeader(ConfigConstants.SG_CONF_REQUEST_HEADER, "true");
                 irb.setTimeout(TimeValue.timeValueMinutes(1));
                 irb.execute().actionGet();
             } catch (final Exception e) {
                 log.error("Unable to index audit log {} due to {}", msg, e.toString(), e);
+                deliveryFailed();
             }
         }
     }
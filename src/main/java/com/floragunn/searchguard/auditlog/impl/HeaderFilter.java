@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Decides which REST and transport headers end up in audit messages. Header names are matched case insensitive
+ * against an allow list (all headers if empty) and a deny list, the Authorization header is always denied.
+ * The patterns are compiled once and the decision is cached per header name, the set of names is small.
+ */
+final class HeaderFilter {
+
+    static final HeaderFilter DEFAULT = new HeaderFilter(Collections.<String>emptyList(), Collections.<String>emptyList());
+
+    private static final String AUTHORIZATION_HEADER = "authorization";
+    private static final int MAX_CACHED_NAMES = 1000;
+
+    private final CompiledWildcardMatcher allowed;
+    private final CompiledWildcardMatcher denied;
+    private final ConcurrentMap<String, Boolean> decisions = new ConcurrentHashMap<String, Boolean>();
+
+    HeaderFilter(final List<String> allowed, final List<String> denied) {
+        final List<String> deniedLowerCase = lowerCase(denied);
+        deniedLowerCase.add(AUTHORIZATION_HEADER);
+        this.allowed = CompiledWildcardMatcher.compile(lowerCase(allowed));
+        this.denied = CompiledWildcardMatcher.compile(deniedLowerCase);
+    }
+
+    static HeaderFilter of(final Settings settings) {
+        final List<String> allowed = settings.getAsList("searchguard.audit.config.headers.allow", Collections.<String>emptyList());
+        final List<String> denied = settings.getAsList("searchguard.audit.config.headers.deny", Collections.<String>emptyList());
+
+        if (allowed.isEmpty() && denied.isEmpty()) {
+            return DEFAULT;
+        }
+
+        return new HeaderFilter(allowed, denied);
+    }
+
+    boolean isAllowed(final String name) {
+        if (name == null) {
+            return false;
+        }
+
+        Boolean allow = decisions.get(name);
+
+        if (allow == null) {
+            final String lowerCaseName = name.toLowerCase(Locale.ROOT);
+            allow = !denied.matches(lowerCaseName) && (allowed.isEmpty() || allowed.matches(lowerCaseName));
+
+            if (decisions.size() >= MAX_CACHED_NAMES) {
+                decisions.clear();
+            }
+
+            decisions.put(name, allow);
+        }
+
+        return allow.booleanValue();
+    }
+
+    /**
+     * Copy the allowed headers in a single pass, the values are not copied.
+     * 
+     * @return an unmodifiable map of the allowed headers, null if there are no headers at all
+     */
+    <V> Map<String, V> filter(final Map<String, V> headers) {
+        if (headers == null || headers.isEmpty()) {
+            return null;
+        }
+
+        // sized for all headers, usually only a few are filtered
+        final Map<String, V> filtered = new HashMap<String, V>((int) (headers.size() / 0.75f) + 1);
+
+        for (final Entry<String, V> header : headers.entrySet()) {
+            if (isAllowed(header.getKey())) {
+                filtered.put(header.getKey(), header.getValue());
+            }
+        }
+
+        return Collections.unmodifiableMap(filtered);
+    }
+
+    private static List<String> lowerCase(final List<String> patterns) {
+        final List<String> lowerCase = new ArrayList<String>(patterns.size() + 1);
+
+        for (final String pattern : patterns) {
+            // a /regex/ is kept as it is (e.g. \S), it is matched against the lower case name
+            final boolean regex = pattern.length() > 1 && pattern.startsWith("/") && pattern.endsWith("/");
+            lowerCase.add(regex ? pattern : pattern.toLowerCase(Locale.ROOT));
+        }
+
+        return lowerCase;
+    }
+}
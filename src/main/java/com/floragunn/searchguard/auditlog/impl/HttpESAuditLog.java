@@ -19,17 +19,30 @@ import java.nio.file.Path;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.collect.Tuple;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.threadpool.ThreadPool;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
 
+import com.floragunn.searchguard.httpclient.GzipCompressor;
 import com.floragunn.searchguard.httpclient.HttpClient;
 import com.floragunn.searchguard.httpclient.HttpClient.HttpClientBuilder;
 import com.floragunn.searchguard.ssl.util.SSLConfigConstants;
@@ -44,7 +57,17 @@ public final class HttpESAuditLog extends AuditLogSink {
 	private final String type;
 	private final HttpClient client;
 	private final List<String> servers;
-	private DateTimeFormatter indexPattern;
+	private RollingIndexName indexPattern;
+	// index name and JSON source of the pending messages, null if bulk mode is disabled
+	private final MessageBatcher<Tuple<String, BytesReference>> batcher;
+	private final int maxInFlightRequests;
+	private final Semaphore inFlightRequests;
+	// failed bulk items are retried from here with an exponential backoff, null if bulk mode is disabled
+	private final ScheduledThreadPoolExecutor retryScheduler;
+	private final int maxRetries;
+	private final long retryBackoffMillis;
+	// scheduled retries which did not start yet, close() sends them right away
+	private final Set<BulkRetry> pendingRetries = ConcurrentHashMap.newKeySet();
 	
     static final String PKCS12 = "PKCS12";
 
@@ -57,7 +80,7 @@ public final class HttpESAuditLog extends AuditLogSink {
 		this.index = settings.get(ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_INDEX, "'sg6-auditlog-'YYYY.MM.dd");
 		
 		try {
-            this.indexPattern = DateTimeFormat.forPattern(index);
+            this.indexPattern = RollingIndexName.forPattern(index);
         } catch (IllegalArgumentException e) {
             log.debug("Unable to parse index pattern due to {}. "
                     + "If you have no date pattern configured you can safely ignore this message", e.getMessage());
@@ -154,27 +177,245 @@ public final class HttpESAuditLog extends AuditLogSink {
 		if (user != null && password != null) {
 			builder.setBasicCredentials(user, password);
 		}
+		
+		final GzipCompressor compressor = createCompressor(settings);
+		
+		if (compressor != null) {
+		    builder.enableGzipCompression(compressor);
+		}
 
 		client = builder.build();
+		
+		maxInFlightRequests = Math.max(1, settings.getAsInt("searchguard.audit.config.max_in_flight_requests", 16));
+		inFlightRequests = new Semaphore(maxInFlightRequests);
+		
+		if (settings.getAsBoolean("searchguard.audit.config.bulk.enabled", false)) {
+		    final int maxActions = settings.getAsInt("searchguard.audit.config.bulk.max_actions", 1000);
+		    final ByteSizeValue maxSize = settings.getAsBytesSize("searchguard.audit.config.bulk.max_size", new ByteSizeValue(5, ByteSizeUnit.MB));
+		    final TimeValue linger = settings.getAsTime("searchguard.audit.config.bulk.flush_interval", TimeValue.timeValueSeconds(1));
+		    
+		    batcher = new MessageBatcher<Tuple<String, BytesReference>>(getClass().getSimpleName(), maxActions, maxSize.getBytes(), linger.millis(), 
+		            new MessageBatcher.BatchHandler<Tuple<String, BytesReference>>() {
+		        @Override
+		        public void handle(List<Tuple<String, BytesReference>> batch) {
+		            storeBulk(batch);
+		        }
+		    });
+		    
+		    maxRetries = Math.max(0, settings.getAsInt("searchguard.audit.config.bulk.max_retries", 3));
+		    retryBackoffMillis = settings.getAsTime("searchguard.audit.config.bulk.retry_backoff", TimeValue.timeValueMillis(100)).millis();
+		    retryScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		        @Override
+		        public Thread newThread(Runnable r) {
+		            final Thread thread = new Thread(r, "searchguard_audit_" + HttpESAuditLog.class.getSimpleName() + "_retry");
+		            thread.setDaemon(true);
+		            return thread;
+		        }
+		    });
+		    
+		    log.info("Bulk indexing enabled with maxActions: {}, maxSize: {}, linger: {}, maxRetries: {}", maxActions, maxSize, linger, maxRetries);
+		} else {
+		    batcher = null;
+		    retryScheduler = null;
+		    maxRetries = 0;
+		    retryBackoffMillis = 0;
+		}
 	}
 
 	@Override
 	public void close() throws IOException {
+	    if (batcher != null) {
+	        batcher.close();
+	    }
+	    
+	    if (retryScheduler != null) {
+	        // tasks of a shut down ScheduledThreadPoolExecutor are cancelled when run, so the pending retries are 
+	        // sent from here, retries failing from now on are rejected by the scheduler and logged
+	        retryScheduler.shutdownNow();
+	        for (final BulkRetry retry : pendingRetries) {
+	            retry.run();
+	        }
+	    }
+	    
+	    try {
+	        if (!inFlightRequests.tryAcquire(maxInFlightRequests, 30, TimeUnit.SECONDS)) {
+	            log.error("Timeout while waiting for {} pending audit log requests", maxInFlightRequests - inFlightRequests.availablePermits());
+	        }
+	    } catch (InterruptedException e) {
+	        Thread.currentThread().interrupt();
+	    }
+	    
 		if (client != null) {
 			client.close();
 		}
 	}
 
+	private void storeBulk(final List<Tuple<String, BytesReference>> batch) {
+	    final List<String> indices = new ArrayList<String>(batch.size());
+	    final List<BytesReference> contents = new ArrayList<BytesReference>(batch.size());
+	    
+	    for (final Tuple<String, BytesReference> item : batch) {
+	        indices.add(item.v1());
+	        contents.add(item.v2());
+	    }
+	    
+	    sendBulk(indices, contents, 0);
+	}
+	
+	/**
+	 * Send a bulk request without blocking. The calling thread (an audit log consumer or the retry thread) only waits 
+	 * if too many requests are in flight, never an I/O dispatcher thread.
+	 */
+	private void sendBulk(final List<String> indices, final List<BytesReference> contents, final int attempt) {
+	    try {
+	        inFlightRequests.acquire();
+	    } catch (InterruptedException e) {
+	        Thread.currentThread().interrupt();
+	        log.error("Interrupted while waiting to send {} audit log messages", contents.size());
+	        deliveryFailed();
+	        deliveryCompleted(contents.size());
+	        return;
+	    }
+	    
+	    client.bulkAsync(indices, contents, type, false, new HttpClient.BulkListener() {
+	        
+	        @Override
+	        public void onResponse(BitSet failed) {
+	            inFlightRequests.release();
+	            
+	            if (failed.isEmpty()) {
+	                deliveryCompleted(contents.size());
+	                return;
+	            }
+	            
+	            deliveryFailed();
+	            deliveryCompleted(contents.size() - failed.cardinality());
+	            
+	            // only the failed items, e.g. rejected ones, are sent again
+	            final List<String> failedIndices = new ArrayList<String>(failed.cardinality());
+	            final List<BytesReference> failedContents = new ArrayList<BytesReference>(failed.cardinality());
+	            
+	            for (int i = failed.nextSetBit(0); i >= 0; i = failed.nextSetBit(i + 1)) {
+	                failedIndices.add(indices.get(i));
+	                failedContents.add(contents.get(i));
+	            }
+	            
+	            retryLater(failedIndices, failedContents, attempt, "failed bulk items");
+	        }
+	        
+	        @Override
+	        public void onFailure(Exception e) {
+	            inFlightRequests.release();
+	            deliveryFailed();
+	            retryLater(indices, contents, attempt, e.toString());
+	        }
+	    });
+	}
+	
+	/**
+	 * Called from I/O dispatcher threads, so it only schedules the retry.
+	 */
+	private void retryLater(final List<String> indices, final List<BytesReference> contents, final int attempt, final String reason) {
+	    if (attempt >= maxRetries) {
+	        log.error("Unable to send {} audit log messages to one of these servers: {} after {} retries due to {}", contents.size(), servers, attempt, reason);
+	        deliveryCompleted(contents.size());
+	        return;
+	    }
+	    
+	    final long delayMillis = retryBackoffMillis << Math.min(attempt, 16);
+	    
+	    if (log.isDebugEnabled()) {
+	        log.debug("Retry {} audit log messages in {} ms due to {}", contents.size(), delayMillis, reason);
+	    }
+	    
+	    final BulkRetry retry = new BulkRetry(indices, contents, attempt + 1);
+	    pendingRetries.add(retry);
+	    
+	    try {
+	        retryScheduler.schedule(retry, delayMillis, TimeUnit.MILLISECONDS);
+	    } catch (RejectedExecutionException e) {
+	        if (pendingRetries.remove(retry)) {
+	            log.error("Unable to send {} audit log messages to one of these servers: {} because the audit log is closed, {}", contents.size(), servers, reason);
+	            deliveryCompleted(contents.size());
+	        }
+	    }
+	}
+	
+	int getPendingRetries() {
+	    return pendingRetries.size();
+	}
+	
+	/**
+	 * A scheduled retry, sent either by the retry thread or by close(), whichever removes it from the pending retries first.
+	 */
+	private final class BulkRetry implements Runnable {
+	    
+	    private final List<String> indices;
+	    private final List<BytesReference> contents;
+	    private final int attempt;
+	    
+	    BulkRetry(final List<String> indices, final List<BytesReference> contents, final int attempt) {
+	        this.indices = indices;
+	        this.contents = contents;
+	        this.attempt = attempt;
+	    }
+	    
+	    @Override
+	    public void run() {
+	        if (pendingRetries.remove(this)) {
+	            sendBulk(indices, contents, attempt);
+	        }
+	    }
+	}
+
+	/**
+	 * Send a single message without blocking. The calling thread only waits if too many requests are in flight.
+	 */
+	private void sendAsync(final String expandedIndex, final BytesReference content, final boolean refresh) {
+	    try {
+	        inFlightRequests.acquire();
+	    } catch (InterruptedException e) {
+	        Thread.currentThread().interrupt();
+	        log.error("Interrupted while waiting to send audit log {}", content.utf8ToString());
+	        deliveryFailed();
+	        deliveryCompleted(1);
+	        return;
+	    }
+	    
+	    client.bulkAsync(Collections.singletonList(expandedIndex), Collections.singletonList(content), type, refresh, new HttpClient.BulkListener() {
+	        
+	        @Override
+	        public void onResponse(BitSet failed) {
+	            inFlightRequests.release();
+	            
+	            if (!failed.isEmpty()) {
+	                log.error("Unable to send audit log {} to one of these servers: {}", content.utf8ToString(), servers);
+	                deliveryFailed();
+	            }
+	            deliveryCompleted(1);
+	        }
+	        
+	        @Override
+	        public void onFailure(Exception e) {
+	            inFlightRequests.release();
+	            log.error("Unable to send audit log {} to one of these servers: {} due to {}", content.utf8ToString(), servers, e.toString());
+	            deliveryFailed();
+	            deliveryCompleted(1);
+	        }
+	    });
+	}
+
 	@Override
 	public void store(final AuditMessage msg) {
-		try {
-			boolean successful = client.index(msg.toString(), getExpandedIndexName(indexPattern, index), type, true);
-
-			if (!successful) {
-				log.error("Unable to send audit log {} to one of these servers: {}", msg, servers);
-			}
-		} catch (Exception e) {
-			log.error("Unable to send audit log {} due to", msg, e);
-		}
+	    // serialized once, the bytes are copied as is into the bulk request body
+	    final BytesReference content = msg.toBytes();
+	    deliveryStarted(1);
+	    
+	    if (batcher != null) {
+	        // length of the source is a good enough estimation of the bulk body size
+	        batcher.add(new Tuple<String, BytesReference>(getExpandedIndexName(indexPattern, index), content), content.length());
+	    } else {
+	        sendAsync(getExpandedIndexName(indexPattern, index), content, true);
+	    }
 	}
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.Objects;
+
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+
+/**
+ * The attributes of the local node which are added to every audit message. Read once from the
+ * {@link DiscoveryNode} and shared by all messages instead of being looked up for each one.
+ */
+final class LocalNodeMetadata {
+
+    final String id;
+    final String hostAddress;
+    final String hostName;
+    final String name;
+
+    private LocalNodeMetadata(final DiscoveryNode node) {
+        this.id = node.getId();
+        this.hostAddress = node.getHostAddress();
+        this.hostName = node.getHostName();
+        this.name = node.getName();
+    }
+
+    static LocalNodeMetadata of(final DiscoveryNode node) {
+        return new LocalNodeMetadata(Objects.requireNonNull(node));
+    }
+
+    /**
+     * Holds the metadata of the local node once it was read and drops it when the nodes of the cluster change.
+     * Registered as cluster state listener until {@link #close()} is called.
+     */
+    static final class Cache implements ClusterStateListener {
+
+        private final ClusterService clusterService;
+        private volatile LocalNodeMetadata localNode;
+
+        Cache(final ClusterService clusterService) {
+            this.clusterService = Objects.requireNonNull(clusterService);
+            clusterService.addListener(this);
+        }
+
+        LocalNodeMetadata get() {
+            LocalNodeMetadata node = localNode;
+
+            if (node == null) {
+                node = LocalNodeMetadata.of(clusterService.localNode());
+                localNode = node;
+            }
+
+            return node;
+        }
+
+        @Override
+        public void clusterChanged(final ClusterChangedEvent event) {
+            if (event.nodesChanged()) {
+                // re-read on next use, the local node normally stays the same for the lifetime of the node
+                localNode = null;
+            }
+        }
+
+        void close() {
+            clusterService.removeListener(this);
+        }
+    }
+}
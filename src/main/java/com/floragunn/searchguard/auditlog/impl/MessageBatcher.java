@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Groups items (serialized audit messages) into batches which are handed over to a {@link BatchHandler}
+ * once the batch reached {@code maxActions} items or {@code maxBytes} bytes, or the first item of the
+ * batch waited for {@code lingerMillis}.
+ * <p>
+ * Size based flushes run in the thread which added the last item, so a slow handler slows down the
+ * producers (the audit log consumer threads) instead of piling up batches in memory. Linger flushes
+ * run on a single daemon timer thread.
+ */
+final class MessageBatcher<T> {
+
+    interface BatchHandler<T> {
+        void handle(List<T> batch);
+    }
+
+    private final Logger log = LogManager.getLogger(this.getClass());
+    private final String name;
+    private final int maxActions;
+    private final long maxBytes;
+    private final long lingerMillis;
+    private final BatchHandler<T> handler;
+    private final ScheduledThreadPoolExecutor timer;
+    private List<T> batch;
+    private long batchBytes;
+    private long generation;
+    private boolean closed;
+
+    MessageBatcher(final String name, final int maxActions, final long maxBytes, final long lingerMillis, final BatchHandler<T> handler) {
+        this.name = name;
+        this.maxActions = Math.max(1, maxActions);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.handler = handler;
+        this.batch = new ArrayList<T>(Math.min(this.maxActions, 1024));
+        this.timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "searchguard_audit_" + name + "_batcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    void add(final T item, final long bytes) {
+        List<T> full = null;
+
+        synchronized (this) {
+            if (closed) {
+                log.error("Batcher {} already closed, discard message", name);
+                return;
+            }
+
+            batch.add(item);
+            batchBytes += bytes;
+
+            if (batch.size() >= maxActions || batchBytes >= maxBytes) {
+                full = swap();
+            } else if (batch.size() == 1) {
+                scheduleLingerFlush(generation);
+            }
+        }
+
+        if (full != null) {
+            handle(full);
+        }
+    }
+
+    /**
+     * Hand over the current batch (if any) to the handler in the calling thread.
+     */
+    void flush() {
+        final List<T> pending;
+
+        synchronized (this) {
+            pending = swap();
+        }
+
+        if (pending != null) {
+            handle(pending);
+        }
+    }
+
+    /**
+     * Flush the current batch and stop the timer. Items added afterwards are discarded.
+     */
+    void close() {
+        synchronized (this) {
+            closed = true;
+        }
+
+        timer.shutdownNow();
+        flush();
+    }
+
+    private List<T> swap() {
+        if (batch.isEmpty()) {
+            return null;
+        }
+
+        final List<T> full = batch;
+        batch = new ArrayList<T>(Math.min(maxActions, Math.max(full.size(), 16)));
+        batchBytes = 0;
+        generation++;
+        return full;
+    }
+
+    private void scheduleLingerFlush(final long scheduledGeneration) {
+        if (timer.isShutdown()) {
+            return;
+        }
+
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                final List<T> lingering;
+
+                synchronized (MessageBatcher.this) {
+                    // the batch was already flushed because it was full
+                    lingering = generation == scheduledGeneration ? swap() : null;
+                }
+
+                if (lingering != null) {
+                    handle(lingering);
+                }
+            }
+        }, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void handle(final List<T> items) {
+        try {
+            handler.handle(items);
+        } catch (Exception e) {
+            log.error("Unable to handle batch of {} audit messages for {} due to {}", items.size(), name, e.toString(), e);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.nio.charset.StandardCharsets;
+
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+
+/**
+ * The request body of an audit message. Holds on to the body as it came with the request and turns it into a
+ * String on first use (usually by the sink, not on the thread which handles the request). Bodies longer than
+ * {@code maxBytes} (UTF-8) are cut and end with a truncation marker, JSON and plain sources are sliced before
+ * they are decoded.
+ */
+final class RequestBody {
+
+    static final String TRUNCATED = "... [truncated, total bytes: ";
+
+    private final BytesReference bytes;
+    // null for plain UTF-8 sources
+    private final XContentType xContentType;
+    private final String text;
+    private final long maxBytes;
+    private volatile String resolved;
+
+    private RequestBody(final BytesReference bytes, final XContentType xContentType, final String text, final long maxBytes) {
+        this.bytes = bytes;
+        this.xContentType = xContentType;
+        this.text = text;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param maxBytes the maximum number of bytes kept, no limit if negative
+     */
+    static RequestBody of(final XContentType xContentType, final BytesReference content, final long maxBytes) {
+        return new RequestBody(content, xContentType, null, maxBytes);
+    }
+
+    static RequestBody of(final BytesReference source, final long maxBytes) {
+        return new RequestBody(source, null, null, maxBytes);
+    }
+
+    static RequestBody of(final String source, final long maxBytes) {
+        return new RequestBody(null, null, source, maxBytes);
+    }
+
+    @Override
+    public String toString() {
+        String value = resolved;
+
+        if (value == null) {
+            value = resolve();
+            resolved = value;
+        }
+
+        return value;
+    }
+
+    private String resolve() {
+        if (text != null) {
+            return truncate(text);
+        }
+
+        final int length = bytes.length();
+
+        if (maxBytes >= 0 && length > maxBytes && (xContentType == null || xContentType == XContentType.JSON)) {
+            final int end = charBoundary(bytes, (int) maxBytes);
+            return utf8ToString(bytes.slice(0, end)) + TRUNCATED + length + "]";
+        }
+
+        if (xContentType == null) {
+            return utf8ToString(bytes);
+        }
+
+        try {
+            // binary formats can not be sliced, only the result
+            return truncate(XContentHelper.convertToJson(bytes, false, xContentType));
+        } catch (Exception e) {
+            return e.toString();
+        }
+    }
+
+    private String truncate(final String value) {
+        // 3 bytes per char at most for chars of the BMP, surrogate pairs need 4 bytes for 2 chars
+        if (maxBytes < 0 || value.length() * 3L <= maxBytes) {
+            return value;
+        }
+
+        final byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+
+        if (utf8.length <= maxBytes) {
+            return value;
+        }
+
+        int end = (int) maxBytes;
+        while (end > 0 && (utf8[end] & 0xC0) == 0x80) {
+            end--;
+        }
+
+        return new String(utf8, 0, end, StandardCharsets.UTF_8) + TRUNCATED + utf8.length + "]";
+    }
+
+    // do not cut a multi byte char, end is the index of the first byte which is not kept
+    private static int charBoundary(final BytesReference bytes, int end) {
+        while (end > 0 && (bytes.get(end) & 0xC0) == 0x80) {
+            end--;
+        }
+        return end;
+    }
+
+    private static String utf8ToString(final BytesReference bytes) {
+        try {
+            return bytes.utf8ToString();
+        } catch (Exception e) {
+            return new String(BytesReference.toBytes(bytes), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -15,15 +15,20 @@
 package com.floragunn.searchguard.auditlog.impl;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefIterator;
 import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.IndicesRequest;
 import org.elasticsearch.action.admin.cluster.settings.ClusterUpdateSettingsRequest;
@@ -37,10 +42,7 @@ import org.elasticsearch.action.get.GetRequest;
 import org.elasticsearch.action.get.MultiGetRequest;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.search.SearchRequest;
-import org.elasticsearch.action.support.IndicesOptions;
 import org.elasticsearch.action.update.UpdateRequest;
-import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
-import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.bytes.BytesReference;
 import org.elasticsearch.common.settings.Settings;
@@ -63,6 +65,292 @@ import com.floragunn.searchguard.support.WildcardMatcher;
 
 public final class RequestResolver {
     
+    /**
+     * Adds the indices, types, ids and source of a request of type T to an audit message.
+     */
+    @FunctionalInterface
+    public interface RequestExtractor<T> {
+        void extract(T request, AuditMessage msg, ResolveContext context);
+    }
+    
+    /**
+     * The audit settings an extractor needs to add indices and the request body.
+     */
+    public static final class ResolveContext {
+        private final ConcreteIndexResolver indexResolver;
+        private final Settings settings;
+        private final boolean logRequestBody;
+        private final long maxBodyBytes;
+        private final boolean resolveIndices;
+        private final String searchguardIndex;
+        
+        private ResolveContext(final ConcreteIndexResolver indexResolver, final Settings settings, 
+                final boolean logRequestBody, final long maxBodyBytes, final boolean resolveIndices, final String searchguardIndex) {
+            this.indexResolver = indexResolver;
+            this.settings = settings;
+            this.logRequestBody = logRequestBody;
+            this.maxBodyBytes = maxBodyBytes;
+            this.resolveIndices = resolveIndices;
+            this.searchguardIndex = searchguardIndex;
+        }
+        
+        public boolean isLogRequestBody() {
+            return logRequestBody;
+        }
+        
+        public boolean isResolveIndices() {
+            return resolveIndices;
+        }
+        
+        /**
+         * Add the indices (and resolved indices if enabled) and the source if the request body is logged. 
+         * A sensitive source is omitted if the request targets the Search Guard index.
+         */
+        public void addIndicesAndSource(final AuditMessage msg, final String[] indices, final BytesReference source, final boolean sourceIsSensitive) {
+            addIndicesSourceSafe(msg, arrayOrEmpty(indices), indexResolver, source, settings, resolveIndices, logRequestBody, maxBodyBytes, sourceIsSensitive, searchguardIndex);
+        }
+        
+        public void addIndices(final AuditMessage msg, final String[] indices) {
+            addIndicesSourceSafe(msg, arrayOrEmpty(indices), indexResolver, null, settings, resolveIndices, logRequestBody, maxBodyBytes, false, searchguardIndex);
+        }
+        
+        /**
+         * Add the source (UTF-8), it is decoded and cut to the configured maximum body size only when the message is serialized.
+         * The caller has to check {@link #isLogRequestBody()}.
+         */
+        public void addSource(final AuditMessage msg, final BytesReference source) {
+            msg.addSource(source, maxBodyBytes);
+        }
+        
+        /**
+         * Add the source, cut to the configured maximum body size. The caller has to check {@link #isLogRequestBody()}.
+         */
+        public void addSource(final AuditMessage msg, final String source) {
+            msg.addSource(source, maxBodyBytes);
+        }
+    }
+    
+    /**
+     * Settings for auditing a whole BulkShardRequest with one message instead of one message per item.
+     */
+    public static final class BulkAggregation {
+        private static final char[] HEX = "0123456789abcdef".toCharArray();
+        private final int maxItems;
+        private final boolean sourceDigests;
+        
+        /**
+         * @param maxItems the number of items which are listed with id, type and op type, all if negative
+         * @param sourceDigests add the SHA-256 of the source of index items instead of the source
+         */
+        public BulkAggregation(final int maxItems, final boolean sourceDigests) {
+            this.maxItems = maxItems;
+            this.sourceDigests = sourceDigests;
+        }
+        
+        private void addItems(final AuditMessage msg, final BulkShardRequest request, final boolean logRequestBody, final String searchguardIndex) {
+            final BulkItemRequest[] items = request.items();
+            final int listed = maxItems < 0 ? items.length : Math.min(maxItems, items.length);
+            final String[] ids = new String[listed];
+            final String[] types = new String[listed];
+            final String[] opTypes = new String[listed];
+            // like the source of single index requests the digests are omitted for the Search Guard index
+            final MessageDigest digest = sourceDigests && logRequestBody && request.shardId() != null
+                    && !searchguardIndex.equals(request.shardId().getIndexName()) ? sha256() : null;
+            final String[] digests = digest == null ? null : new String[listed];
+            
+            for (int i = 0; i < listed; i++) {
+                final DocWriteRequest<?> item = items[i] == null ? null : items[i].request();
+                
+                if (item == null) {
+                    continue;
+                }
+                
+                ids[i] = item.id();
+                types[i] = item.type();
+                opTypes[i] = item.opType().getLowercase();
+                
+                if (digests != null && item instanceof IndexRequest && ((IndexRequest) item).source() != null) {
+                    digests[i] = sha256Hex(digest, ((IndexRequest) item).source());
+                }
+            }
+            
+            msg.addShardId(request.shardId());
+            msg.addBulkItemCount(items.length);
+            msg.addIds(ids);
+            msg.addTypes(types);
+            msg.addOpTypes(opTypes);
+            msg.addSourceDigests(digests);
+        }
+        
+        private static MessageDigest sha256() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // every JRE must support SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+        
+        private static String sha256Hex(final MessageDigest digest, final BytesReference source) {
+            final BytesRefIterator iterator = source.iterator();
+            
+            try {
+                for (BytesRef ref = iterator.next(); ref != null; ref = iterator.next()) {
+                    digest.update(ref.bytes, ref.offset, ref.length);
+                }
+            } catch (IOException e) {
+                digest.reset();
+                return null;
+            }
+            
+            final byte[] hash = digest.digest();
+            final char[] hex = new char[hash.length * 2];
+            
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+            }
+            
+            return new String(hex);
+        }
+    }
+    
+    private static final RequestExtractor<Object> NO_EXTRACTOR = (request, msg, context) -> {};
+    // registered extractors in registration order, replaced as a whole on registration
+    private static volatile Map<Class<?>, RequestExtractor<?>> extractors = Collections.emptyMap();
+    private static volatile ClassValue<RequestExtractor<Object>> extractorCache = newExtractorCache();
+    
+    static {
+        registerExtractor(MultiGetRequest.Item.class, (item, msg, context) -> {
+            msg.addType(item.type());
+            msg.addId(item.id());
+            context.addIndices(msg, item.indices());
+        });
+        registerExtractor(CreateIndexRequest.class, (cir, msg, context) -> context.addIndices(msg, cir.indices()));
+        registerExtractor(DeleteIndexRequest.class, (dir, msg, context) -> context.addIndices(msg, dir.indices()));
+        registerExtractor(IndexRequest.class, (ir, msg, context) -> {
+            msg.addShardId(ir.shardId());
+            msg.addType(ir.type());
+            msg.addId(ir.id());
+            context.addIndicesAndSource(msg, ir.indices(), ir.source(), true);
+        });
+        registerExtractor(DeleteRequest.class, (dr, msg, context) -> {
+            msg.addShardId(dr.shardId());
+            msg.addType(dr.type());
+            msg.addId(dr.id());
+            context.addIndices(msg, dr.indices());
+        });
+        registerExtractor(UpdateRequest.class, (ur, msg, context) -> {
+            msg.addType(ur.type());
+            msg.addId(ur.id());
+            context.addIndices(msg, ur.indices());
+            if(context.isLogRequestBody()) {
+
+                if (ur.doc() != null) {
+                    context.addSource(msg, ur.doc().source());
+                }
+    
+                if (ur.script() != null) {
+                    context.addSource(msg, Strings.toString(ur.script()));
+                }
+            }
+        });
+        registerExtractor(GetRequest.class, (gr, msg, context) -> {
+            msg.addType(gr.type());
+            msg.addId(gr.id());
+            context.addIndices(msg, gr.indices());
+        });
+        registerExtractor(SearchRequest.class, (sr, msg, context) -> {
+            msg.addTypes(arrayOrEmpty(sr.types()));
+            // the source can be big (aggregations), only serialize it if it is logged
+            final BytesReference source = context.isLogRequestBody() ? toJson(sr.source()) : null;
+            context.addIndicesAndSource(msg, sr.indices(), source, false);
+        });
+        registerExtractor(ClusterUpdateSettingsRequest.class, (cusr, msg, context) -> {
+            if(context.isLogRequestBody()) {
+                final Settings persistentSettings = cusr.persistentSettings();
+                final Settings transientSettings = cusr.transientSettings();
+                context.addSource(msg, "persistent: "+String.valueOf(persistentSettings == null?Collections.EMPTY_MAP:persistentSettings.toString())
+                             +";transient: "+String.valueOf(transientSettings == null?Collections.EMPTY_MAP:transientSettings.toString()));  
+            }
+        });
+        registerExtractor(ReindexRequest.class, (rr, msg, context) -> {
+            final IndexRequest ir = rr.getDestination();
+            msg.addShardId(ir.shardId());
+            msg.addType(ir.type());
+            msg.addId(ir.id());
+            context.addIndicesAndSource(msg, ir.indices(), ir.source(), true);
+        });
+        registerExtractor(DeleteByQueryRequest.class, (ir, msg, context) -> context.addIndices(msg, ir.indices()));
+        registerExtractor(UpdateByQueryRequest.class, (ir, msg, context) -> context.addIndices(msg, ir.indices()));
+        registerExtractor(PutMappingRequest.class, (pr, msg, context) -> {
+            final Index ci = pr.getConcreteIndex();
+            msg.addType(pr.type());
+            String[] indices = new String[0];
+            msg.addIndices(indices);
+            
+            if(ci != null) {
+                indices = new String[]{ci.getName()};
+            }
+            
+            if(context.isLogRequestBody()) {
+                context.addSource(msg, pr.source());
+            }
+            
+            if(context.isResolveIndices()) {
+                msg.addResolvedIndices(indices);
+            }
+        });
+        //less specific, only used if no class of the request has an extractor
+        registerExtractor(IndicesRequest.class, (ir, msg, context) -> context.addIndices(msg, ir.indices()));
+    }
+    
+    /**
+     * Register an extractor for requests of the given class and its subclasses, e.g. for request types of other plugins.
+     * Replaces an extractor which was registered for the same class before. If an interface is registered it is 
+     * used for requests which have no extractor for their class or one of its superclasses.
+     */
+    public static synchronized <T> void registerExtractor(final Class<T> type, final RequestExtractor<? super T> extractor) {
+        final Map<Class<?>, RequestExtractor<?>> copy = new LinkedHashMap<Class<?>, RequestExtractor<?>>(extractors);
+        copy.put(Objects.requireNonNull(type), Objects.requireNonNull(extractor));
+        extractors = copy;
+        // forget all lookups made so far
+        extractorCache = newExtractorCache();
+    }
+    
+    static RequestExtractor<Object> extractorFor(final Class<?> type) {
+        return extractorCache.get(type);
+    }
+    
+    private static ClassValue<RequestExtractor<Object>> newExtractorCache() {
+        return new ClassValue<RequestExtractor<Object>>() {
+            @Override
+            protected RequestExtractor<Object> computeValue(Class<?> type) {
+                return lookupExtractor(type, extractors);
+            }
+        };
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static RequestExtractor<Object> lookupExtractor(final Class<?> type, final Map<Class<?>, RequestExtractor<?>> extractors) {
+        // the most specific class wins
+        for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+            final RequestExtractor<?> extractor = extractors.get(clazz);
+            if (extractor != null) {
+                return (RequestExtractor<Object>) extractor;
+            }
+        }
+        
+        // then interfaces in registration order
+        for (final Map.Entry<Class<?>, RequestExtractor<?>> entry : extractors.entrySet()) {
+            if (entry.getKey().isInterface() && entry.getKey().isAssignableFrom(type)) {
+                return (RequestExtractor<Object>) entry.getValue();
+            }
+        }
+        
+        return NO_EXTRACTOR;
+    }
+    
     public static List<AuditMessage> resolve(
             final Category category, 
             final Origin origin, 
@@ -75,15 +363,42 @@ public final class RequestResolver {
             final TransportRequest request,
             final Map<String, String> headers,
             final Task task,
-            final IndexNameExpressionResolver resolver, 
-            final ClusterService cs, 
+            final ConcreteIndexResolver indexResolver,
+            final LocalNodeMetadata localNode,
             final Settings settings, 
             final boolean logRequestBody, 
+            final long maxBodyBytes,
             final boolean resolveIndices, 
             final boolean resolveBulk,
+            final BulkAggregation bulkAggregation,
             final String searchguardIndex,
             final Throwable exception)  {
         
+        if(resolveBulk && bulkAggregation != null && request instanceof BulkShardRequest) {
+            final AuditMessage msg = resolveInner(
+                    category, 
+                    effectiveUser, 
+                    sgAdmin, 
+                    initiatingUser, 
+                    remoteAddress, 
+                    action, 
+                    privilege, 
+                    origin, 
+                    request,
+                    headers,
+                    task,
+                    indexResolver,
+                    localNode,
+                    settings, 
+                    logRequestBody, 
+                    maxBodyBytes,
+                    resolveIndices,
+                    searchguardIndex,
+                    exception);
+            bulkAggregation.addItems(msg, (BulkShardRequest) request, logRequestBody, searchguardIndex);
+            return Collections.singletonList(msg);
+        }
+        
         if(resolveBulk && request instanceof BulkShardRequest) { 
             final BulkItemRequest[] innerRequests = ((BulkShardRequest) request).items();
             final List<AuditMessage> messages = new ArrayList<AuditMessage>(innerRequests.length);
@@ -102,10 +417,11 @@ public final class RequestResolver {
                         innerRequest,
                         headers,
                         task,
-                        resolver, 
-                        cs, 
+                        indexResolver,
+                        localNode,
                         settings, 
                         logRequestBody, 
+                        maxBodyBytes,
                         resolveIndices,
                         searchguardIndex,
                         exception);
@@ -139,10 +455,11 @@ public final class RequestResolver {
                 request,
                 headers,
                 task,
-                resolver, 
-                cs, 
+                indexResolver,
+                localNode,
                 settings, 
                 logRequestBody, 
+                maxBodyBytes,
                 resolveIndices,
                 searchguardIndex,
                 exception));
@@ -160,15 +477,16 @@ public final class RequestResolver {
             final Object request,
             final Map<String, String> headers,
             final Task task,
-            final IndexNameExpressionResolver resolver, 
-            final ClusterService cs,
+            final ConcreteIndexResolver indexResolver,
+            final LocalNodeMetadata localNode,
             final Settings settings,
             final boolean logRequestBody, 
+            final long maxBodyBytes,
             final boolean resolveIndices,
             final String searchguardIndex,
             final Throwable exception)  {
 
-        final AuditMessage msg = new AuditMessage(category, cs, origin, Origin.TRANSPORT);
+        final AuditMessage msg = new AuditMessage(category, localNode, origin, Origin.TRANSPORT);
         msg.addInitiatingUser(initiatingUser);
         msg.addEffectiveUser(effectiveUser);
         msg.addRemoteAddress(remoteAddress);
@@ -184,7 +502,8 @@ public final class RequestResolver {
         
         msg.addException(exception);
         msg.addPrivilege(priv);
-        msg.addTransportHeaders(headers);
+        // filtered by the caller
+        msg.addFilteredTransportHeaders(headers);
         
         if(task != null) {
             msg.addTaskId(task.getId());
@@ -194,132 +513,9 @@ public final class RequestResolver {
         }
         
         //attempt to resolve indices/types/id/source 
-        if (request instanceof MultiGetRequest.Item) {
-            final MultiGetRequest.Item item = (MultiGetRequest.Item) request;
-            final String[] indices = arrayOrEmpty(item.indices());
-            final String type = item.type();
-            final String id = item.id();
-            msg.addType(type);
-            msg.addId(id);
-            addIndicesSourceSafe(msg, indices, resolver, cs, null, settings, resolveIndices, logRequestBody, false, searchguardIndex);
-        } else if (request instanceof CreateIndexRequest) {
-            final CreateIndexRequest cir = (CreateIndexRequest) request;
-            final String[] indices = arrayOrEmpty(cir.indices());
-            addIndicesSourceSafe(msg, indices, resolver, cs, null, settings, resolveIndices, logRequestBody, false, searchguardIndex);
-        } else if (request instanceof DeleteIndexRequest) {
-            final DeleteIndexRequest dir = (DeleteIndexRequest) request;
-            final String[] indices = arrayOrEmpty(dir.indices());
-            addIndicesSourceSafe(msg, indices, resolver, cs, null, settings, resolveIndices, logRequestBody, false, searchguardIndex);
-        } else if (request instanceof IndexRequest) {
-            final IndexRequest ir = (IndexRequest) request;
-            final String[] indices = arrayOrEmpty(ir.indices());
-            final String type = ir.type();
-            final String id = ir.id();
-            msg.addShardId(ir.shardId());
-            msg.addType(type);
-            msg.addId(id);
-            addIndicesSourceSafe(msg, indices, resolver, cs, ir.source(), settings, resolveIndices, logRequestBody, true, searchguardIndex);
-        } else if (request instanceof DeleteRequest) {
-            final DeleteRequest dr = (DeleteRequest) request;
-            final String[] indices = arrayOrEmpty(dr.indices());
-            final String type = dr.type();
-            final String id = dr.id();
-            msg.addShardId(dr.shardId());
-            msg.addType(type);
-            msg.addId(id);
-            addIndicesSourceSafe(msg, indices, resolver, cs, null, settings, resolveIndices, logRequestBody, false, searchguardIndex);
-        } else if (request instanceof UpdateRequest) {
-            final UpdateRequest ur = (UpdateRequest) request;
-            final String[] indices = arrayOrEmpty(ur.indices());
-            final String type = ur.type();
-            final String id = ur.id();
-            msg.addType(type);
-            msg.addId(id);
-            addIndicesSourceSafe(msg, indices, resolver, cs, null, settings, resolveIndices, logRequestBody, false, searchguardIndex);
-            if(logRequestBody) {
-
-                if (ur.doc() != null) {
-                    msg.addSource(ur.doc() == null ? null :sourceToString(ur.doc().source()));
-                }
-    
-                if (ur.script() != null) {
-                    msg.addSource(ur.script() == null ? null : Strings.toString(ur.script()));
-                }
-            }
-        } else if (request instanceof GetRequest) {
-            final GetRequest gr = (GetRequest) request;
-            final String[] indices = arrayOrEmpty(gr.indices());
-            final String type = gr.type();
-            final String id = gr.id();
-            msg.addType(type);
-            msg.addId(id);
-            addIndicesSourceSafe(msg, indices, resolver, cs, null, settings, resolveIndices, logRequestBody, false, searchguardIndex);
-        } else if (request instanceof SearchRequest) {
-            final SearchRequest sr = (SearchRequest) request;
-            final String[] indices = arrayOrEmpty(sr.indices());
-            final String[] types = arrayOrEmpty(sr.types());
-            msg.addTypes(types);
-            XContentBuilder builder = null;
-            try {
-                if(sr.source() != null) {
-                    builder = XContentFactory.jsonBuilder();
-                    sr.source().toXContent(builder, ToXContent.EMPTY_PARAMS);
-                }
-            } catch (IOException e) {
-                builder = null;
-            } finally {
-                if(builder != null) {
-                    builder.close();
-                }
-            }
-            addIndicesSourceSafe(msg, indices, resolver, cs, builder == null? null:builder.bytes(), settings, resolveIndices, logRequestBody, false, searchguardIndex);
-        } else if (request instanceof ClusterUpdateSettingsRequest) {
-            if(logRequestBody) {
-                final ClusterUpdateSettingsRequest cusr = (ClusterUpdateSettingsRequest) request;
-                final Settings persistentSettings = cusr.persistentSettings();
-                final Settings transientSettings = cusr.transientSettings();
-                msg.addSource("persistent: "+String.valueOf(persistentSettings == null?Collections.EMPTY_MAP:persistentSettings.toString())
-                             +";transient: "+String.valueOf(transientSettings == null?Collections.EMPTY_MAP:transientSettings.toString()));  
-            }
-        } else if (request instanceof ReindexRequest) {
-            final IndexRequest ir = ((ReindexRequest) request).getDestination();
-            final String[] indices = arrayOrEmpty(ir.indices());
-            final String type = ir.type();
-            final String id = ir.id();
-            msg.addShardId(ir.shardId());
-            msg.addType(type);
-            msg.addId(id);
-            addIndicesSourceSafe(msg, indices, resolver, cs, ir.source(), settings, resolveIndices, logRequestBody, true, searchguardIndex);
-        } else if (request instanceof DeleteByQueryRequest) {
-            final DeleteByQueryRequest ir = (DeleteByQueryRequest) request;
-            final String[] indices = arrayOrEmpty(ir.indices());
-            addIndicesSourceSafe(msg, indices, resolver, cs, null, settings, resolveIndices, logRequestBody, false, searchguardIndex);
-        } else if (request instanceof UpdateByQueryRequest) {
-            final UpdateByQueryRequest ir = (UpdateByQueryRequest) request;
-            final String[] indices = arrayOrEmpty(ir.indices());
-            addIndicesSourceSafe(msg, indices, resolver, cs, null, settings, resolveIndices, logRequestBody, false, searchguardIndex);
-        } else if (request instanceof PutMappingRequest) {
-            final PutMappingRequest pr = (PutMappingRequest) request;
-            final Index ci = pr.getConcreteIndex();
-            msg.addType(pr.type());
-            String[] indices = new String[0];
-            msg.addIndices(indices);
-            
-            if(ci != null) {
-                indices = new String[]{ci.getName()};
-            }
-            
-            if(logRequestBody) {
-                msg.addSource(pr.source());
-            }
-            
-            if(resolveIndices) {
-                msg.addResolvedIndices(indices);
-            }
-        } else if (request instanceof IndicesRequest) { //less specific
-            final IndicesRequest ir = (IndicesRequest) request;
-            final String[] indices = arrayOrEmpty(ir.indices());
-            addIndicesSourceSafe(msg, indices, resolver, cs, null, settings, resolveIndices, logRequestBody, false, searchguardIndex);
+        if (request != null) {
+            extractorFor(request.getClass()).extract(request, msg, 
+                    new ResolveContext(indexResolver, settings, logRequestBody, maxBodyBytes, resolveIndices, searchguardIndex));
         }
         
         return msg;
@@ -327,12 +523,12 @@ public final class RequestResolver {
     
     private static void addIndicesSourceSafe(final AuditMessage msg, 
             final String[] indices, 
-            final IndexNameExpressionResolver resolver, 
-            final ClusterService cs, 
+            final ConcreteIndexResolver indexResolver,
             final BytesReference source,
             final Settings settings,
             boolean resolveIndices,
             final boolean addSource,
+            final long maxBodyBytes,
             final boolean sourceIsSensitive,
             final String searchguardIndex) {
         
@@ -346,7 +542,7 @@ public final class RequestResolver {
         final Set<String> allIndices;
         
         if(resolveIndices) {
-            final String[] resolvedIndices = (resolver==null)?new String[0]:resolver.concreteIndexNames(cs.state(), IndicesOptions.lenientExpandOpen(), indices);
+            final String[] resolvedIndices = (indexResolver==null)?new String[0]:indexResolver.resolve(_indices);
             msg.addResolvedIndices(resolvedIndices);
             allIndices = new HashSet<String>(resolvedIndices.length+_indices.length);
             allIndices.addAll(Arrays.asList(_indices));
@@ -365,24 +561,30 @@ public final class RequestResolver {
         if(addSource) {
             if(sourceIsSensitive && source != null) {   
                 if(!WildcardMatcher.matchAny(allIndices.toArray(new String[0]), searchguardIndex)) {
-                    msg.addSource(sourceToString(source));
+                    msg.addSource(source, maxBodyBytes);
                 }
             } else if(source != null){
-                msg.addSource(sourceToString(source));
+                msg.addSource(source, maxBodyBytes);
             }
         }
     }
     
-    private static String sourceToString(BytesReference source) {
-
-        if (source == null) {
-            return "";
+    private static BytesReference toJson(final ToXContent source) {
+        if(source == null) {
+            return null;
         }
-
+        
+        XContentBuilder builder = null;
         try {
-            return source.utf8ToString();
-        } catch (Exception e) {
-            return new String(BytesReference.toBytes(source), StandardCharsets.UTF_8);
+            builder = XContentFactory.jsonBuilder();
+            source.toXContent(builder, ToXContent.EMPTY_PARAMS);
+            return builder.bytes();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if(builder != null) {
+                builder.close();
+            }
         }
     }
     
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.EnumSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Expands a Joda date pattern like {@code 'sg6-auditlog-'YYYY.MM.dd} into the index name for the current (UTC) time.
+ * The name is cached together with the instant at which the pattern rolls over, so it is only formatted again once
+ * per hour, day, week, month or year depending on the finest date field of the pattern. Patterns with minutes or
+ * finer are formatted on every call.
+ * <p>
+ * Instances are shared by all sinks which write to the same index pattern.
+ */
+final class RollingIndexName {
+
+    private static final ConcurrentMap<String, RollingIndexName> INSTANCES = new ConcurrentHashMap<String, RollingIndexName>();
+
+    private enum Unit {
+        HOUR, DAY, WEEK, MONTH, YEAR;
+    }
+
+    private final DateTimeFormatter formatter;
+    // false if the pattern contains minutes, seconds or millis
+    private final boolean cacheable;
+    private final EnumSet<Unit> units = EnumSet.noneOf(Unit.class);
+    private volatile Expanded current = new Expanded(null, Long.MIN_VALUE, Long.MIN_VALUE);
+
+    private RollingIndexName(final String pattern) {
+        this.formatter = DateTimeFormat.forPattern(pattern).withZoneUTC();
+        this.cacheable = parseUnits(pattern, units);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the index name is not a valid date pattern
+     */
+    static RollingIndexName forPattern(final String pattern) {
+        RollingIndexName indexName = INSTANCES.get(pattern);
+
+        if (indexName == null) {
+            final RollingIndexName created = new RollingIndexName(pattern);
+            indexName = INSTANCES.putIfAbsent(pattern, created);
+            if (indexName == null) {
+                indexName = created;
+            }
+        }
+
+        return indexName;
+    }
+
+    String current() {
+        return get(System.currentTimeMillis());
+    }
+
+    String get(final long now) {
+        if (!cacheable) {
+            return formatter.print(now);
+        }
+
+        Expanded expanded = current;
+
+        if (now < expanded.validFrom) {
+            // clock went backwards, do not replace the newer name
+            return formatter.print(now);
+        }
+
+        if (now >= expanded.validUntil) {
+            expanded = new Expanded(formatter.print(now), now, nextRollover(now));
+            current = expanded;
+        }
+
+        return expanded.name;
+    }
+
+    long nextRollover(final long now) {
+        final DateTime time = new DateTime(now, DateTimeZone.UTC);
+        long next = Long.MAX_VALUE;
+
+        // weeks are not aligned to months or years, so take the earliest rollover of all fields in the pattern
+        if (units.contains(Unit.HOUR)) {
+            next = Math.min(next, time.hourOfDay().roundFloorCopy().plusHours(1).getMillis());
+        }
+        if (units.contains(Unit.DAY)) {
+            next = Math.min(next, time.dayOfMonth().roundFloorCopy().plusDays(1).getMillis());
+        }
+        if (units.contains(Unit.WEEK)) {
+            next = Math.min(next, time.weekOfWeekyear().roundFloorCopy().plusWeeks(1).getMillis());
+        }
+        if (units.contains(Unit.MONTH)) {
+            next = Math.min(next, time.monthOfYear().roundFloorCopy().plusMonths(1).getMillis());
+        }
+        if (units.contains(Unit.YEAR)) {
+            next = Math.min(next, time.year().roundFloorCopy().plusYears(1).getMillis());
+        }
+
+        return next;
+    }
+
+    /**
+     * Collect the date fields of the pattern, skipping quoted literals.
+     * 
+     * @return false if the pattern contains a field finer than hours
+     */
+    private static boolean parseUnits(final String pattern, final EnumSet<Unit> units) {
+        boolean quoted = false;
+
+        for (int i = 0; i < pattern.length(); i++) {
+            final char c = pattern.charAt(i);
+
+            if (c == '\'') {
+                quoted = !quoted;
+                continue;
+            }
+
+            if (quoted) {
+                continue;
+            }
+
+            switch (c) {
+            case 'm':
+            case 's':
+            case 'S':
+                return false;
+            case 'H':
+            case 'h':
+            case 'K':
+            case 'k':
+            case 'a':
+                units.add(Unit.HOUR);
+                break;
+            case 'd':
+            case 'D':
+            case 'e':
+            case 'E':
+                units.add(Unit.DAY);
+                break;
+            case 'w':
+            case 'x':
+                units.add(Unit.WEEK);
+                break;
+            case 'M':
+                units.add(Unit.MONTH);
+                break;
+            case 'y':
+            case 'Y':
+            case 'C':
+                units.add(Unit.YEAR);
+                break;
+            default:
+                // era, time zone or literal characters, constant for UTC
+                break;
+            }
+        }
+
+        return true;
+    }
+
+    private static final class Expanded {
+
+        final String name;
+        final long validFrom;
+        final long validUntil;
+
+        Expanded(final String name, final long validFrom, final long validUntil) {
+            this.name = name;
+            this.validFrom = validFrom;
+            this.validUntil = validUntil;
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.common.settings.Settings;
+
+import com.floragunn.searchguard.auditlog.impl.AuditMessage.Category;
+
+/**
+ * Sampling and rate limiting of audit events, so that high volume categories like GRANTED_PRIVILEGES
+ * or AUTHENTICATED can be reduced instead of being disabled completely. Rules are configured as named
+ * groups and evaluated in the order of their names, the first rule which matches category, action
+ * (or the request path on the REST layer) and effective user decides:
+ * <pre>
+ * searchguard.audit.config.sampling.granted_reads.categories: [GRANTED_PRIVILEGES]
+ * searchguard.audit.config.sampling.granted_reads.actions: ["indices:data/read/*"]
+ * searchguard.audit.config.sampling.granted_reads.users: ["*"]
+ * searchguard.audit.config.sampling.granted_reads.one_in: 100
+ * searchguard.audit.config.sampling.granted_reads.max_per_second: 50
+ * searchguard.audit.config.sampling.granted_reads.burst: 100
+ * </pre>
+ * Omitted match criteria match everything. {@code rate} keeps a random fraction of the events,
+ * {@code one_in} keeps exactly every n-th one. {@code max_per_second} and {@code burst} configure a
+ * token bucket which is applied to the events which survived sampling. While a rule drops events because
+ * of its rate limit, the events it keeps report their sampling rate reduced by the share of events the
+ * token bucket admitted within the current second, so the rate returns to the configured one as soon as
+ * the bucket stops rejecting events.
+ */
+final class SamplingPolicy {
+
+    static final String SETTINGS_PREFIX = "searchguard.audit.config.sampling.";
+    static final double NOT_AUDITED = 0d;
+    static final double NOT_SAMPLED = 1d;
+    static final SamplingPolicy NONE = new SamplingPolicy(Collections.<Rule>emptyList());
+
+    private static final Logger log = LogManager.getLogger(SamplingPolicy.class);
+    private final Rule[] rules;
+
+    SamplingPolicy(final List<Rule> rules) {
+        this.rules = rules.toArray(new Rule[rules.size()]);
+    }
+
+    static SamplingPolicy of(final Settings settings) {
+        final Map<String, Settings> groups = new TreeMap<String, Settings>(settings.getGroups(SETTINGS_PREFIX));
+
+        if (groups.isEmpty()) {
+            return NONE;
+        }
+
+        final List<Rule> rules = new ArrayList<Rule>(groups.size());
+
+        for (final Entry<String, Settings> group : groups.entrySet()) {
+            final Rule rule = Rule.of(group.getKey(), group.getValue());
+            log.info("Configured audit sampling rule {}", rule);
+            rules.add(rule);
+        }
+
+        return new SamplingPolicy(rules);
+    }
+
+    /**
+     * @return {@link #NOT_AUDITED} if the event is suppressed, otherwise the sampling rate the event
+     *         was kept with ({@link #NOT_SAMPLED} if no sampling applies)
+     */
+    double sample(final Category category, final String action, final String effectiveUser) {
+        for (final Rule rule : rules) {
+            if (rule.matches(category, action, effectiveUser)) {
+                return rule.apply();
+            }
+        }
+
+        return NOT_SAMPLED;
+    }
+
+    /**
+     * Log how many events each rule matched and suppressed.
+     */
+    void logStatistics() {
+        for (final Rule rule : rules) {
+            log.info("Audit sampling rule '{}' matched {} events, sampled out {}, rate limited {}", rule.getName(), rule.getSeen(),
+                    rule.getSampledOut(), rule.getRateLimited());
+        }
+    }
+
+    List<Rule> getRules() {
+        return Collections.unmodifiableList(Arrays.asList(rules));
+    }
+
+    static final class Rule {
+
+        private final String name;
+        private final EnumSet<Category> categories;
+        private final CompiledWildcardMatcher actions;
+        private final CompiledWildcardMatcher users;
+        private final double rate;
+        private final long oneIn;
+        private final double samplingRate;
+        private final TokenBucket tokenBucket;
+        private final AtomicLong seen = new AtomicLong();
+        private final AtomicLong sampledOut = new AtomicLong();
+        private final AtomicLong rateLimited = new AtomicLong();
+
+        Rule(final String name, final EnumSet<Category> categories, final List<String> actions, final List<String> users, final double rate,
+                final long oneIn, final TokenBucket tokenBucket) {
+            this.name = name;
+            this.categories = categories;
+            this.actions = CompiledWildcardMatcher.compile(actions);
+            this.users = CompiledWildcardMatcher.compile(users);
+            this.rate = Math.max(0d, Math.min(1d, rate));
+            this.oneIn = Math.max(1, oneIn);
+            this.samplingRate = this.oneIn > 1 ? 1d / this.oneIn : this.rate;
+            this.tokenBucket = tokenBucket;
+        }
+
+        static Rule of(final String name, final Settings settings) {
+            final EnumSet<Category> categories = EnumSet.noneOf(Category.class);
+
+            for (final String category : settings.getAsList("categories", Collections.<String>emptyList())) {
+                try {
+                    categories.add(Category.valueOf(category.toUpperCase()));
+                } catch (final Exception e) {
+                    log.error("Unkown category {}, please check {}{}.categories settings", category, SETTINGS_PREFIX, name);
+                }
+            }
+
+            final double rate = settings.getAsDouble("rate", NOT_SAMPLED);
+
+            if (rate < 0d || rate > 1d) {
+                log.error("Sampling rate {} of {}{} is not between 0 and 1", rate, SETTINGS_PREFIX, name);
+            }
+
+            final double maxPerSecond = settings.getAsDouble("max_per_second", -1d);
+            final TokenBucket tokenBucket = maxPerSecond > 0 
+                    ? new TokenBucket(maxPerSecond, settings.getAsInt("burst", (int) Math.ceil(maxPerSecond))) : null;
+
+            return new Rule(name, categories, settings.getAsList("actions", Collections.<String>emptyList()),
+                    settings.getAsList("users", Collections.<String>emptyList()), rate, settings.getAsLong("one_in", 1L), tokenBucket);
+        }
+
+        boolean matches(final Category category, final String action, final String effectiveUser) {
+            return (categories.isEmpty() || categories.contains(category))
+                    && (actions.isEmpty() || actions.matches(action))
+                    && (users.isEmpty() || users.matches(effectiveUser));
+        }
+
+        double apply() {
+            final long n = seen.getAndIncrement();
+
+            if (oneIn > 1) {
+                if (Math.floorMod(n, oneIn) != 0) {
+                    sampledOut.incrementAndGet();
+                    return NOT_AUDITED;
+                }
+            } else if (rate < 1d && ThreadLocalRandom.current().nextDouble() >= rate) {
+                sampledOut.incrementAndGet();
+                return NOT_AUDITED;
+            }
+
+            if (tokenBucket == null) {
+                return samplingRate;
+            }
+
+            final double admitted = tokenBucket.acquire(System.nanoTime());
+
+            if (admitted == 0d) {
+                rateLimited.incrementAndGet();
+                return NOT_AUDITED;
+            }
+
+            // otherwise an event dropped by the rate limit would leave no trace in the events which are kept
+            return samplingRate * admitted;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        /**
+         * @return number of events this rule matched
+         */
+        long getSeen() {
+            return seen.get();
+        }
+
+        /**
+         * @return number of events this rule suppressed because of sampling
+         */
+        long getSampledOut() {
+            return sampledOut.get();
+        }
+
+        /**
+         * @return number of events this rule suppressed because of the rate limit
+         */
+        long getRateLimited() {
+            return rateLimited.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Rule [name=" + name + ", categories=" + categories + ", actions=" + actions + ", users=" + users + ", samplingRate="
+                    + samplingRate + ", tokenBucket=" + tokenBucket + "]";
+        }
+    }
+
+    static final class TokenBucket {
+
+        private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+        private final double permitsPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill;
+        // requests and admitted requests since windowStart, reset every WINDOW_NANOS
+        private long windowStart;
+        private long windowRequests;
+        private long windowAdmitted;
+
+        TokenBucket(final double permitsPerSecond, final int burst) {
+            this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+            this.capacity = Math.max(1, burst);
+            this.tokens = capacity;
+            this.lastRefill = System.nanoTime();
+            this.windowStart = lastRefill;
+        }
+
+        boolean tryAcquire(final long now) {
+            return acquire(now) > 0d;
+        }
+
+        /**
+         * @return 0 if no permit is available, otherwise the share of the requests within the current window
+         *         (including this one) which got a permit
+         */
+        synchronized double acquire(final long now) {
+            // nanoTime may be equal or less on another core, never refill with a negative amount
+            if (now > lastRefill) {
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerNano);
+                lastRefill = now;
+            }
+
+            if (now - windowStart >= WINDOW_NANOS) {
+                windowStart = now;
+                windowRequests = 0;
+                windowAdmitted = 0;
+            }
+
+            windowRequests++;
+
+            if (tokens >= 1d) {
+                tokens -= 1d;
+                windowAdmitted++;
+                return (double) windowAdmitted / windowRequests;
+            }
+
+            return 0d;
+        }
+
+        @Override
+        public String toString() {
+            return "TokenBucket [permitsPerSecond=" + (permitsPerNano * TimeUnit.SECONDS.toNanos(1)) + ", burst=" + (long) capacity + "]";
+        }
+    }
+}
@@ -23,27 +23,50 @@ import java.security.AccessController;
 import java.security.KeyStore;
 import java.security.PrivilegedAction;
 import java.security.cert.X509Certificate;
-
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.DefaultHostnameVerifier;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.entity.ContentType;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.ssl.TrustStrategy;
 import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
 import org.elasticsearch.cluster.service.ClusterService;
 import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.threadpool.ThreadPool;
 
+import com.floragunn.searchguard.httpclient.GzipCompressor;
 import com.floragunn.searchguard.ssl.util.SSLConfigConstants;
 import com.floragunn.searchguard.support.ConfigConstants;
 import com.floragunn.searchguard.support.PemKeyReader;
@@ -52,9 +75,17 @@ class WebhookAuditLog extends AuditLogSink {
 	
 	/* HttpClient is thread safe */
 	private final CloseableHttpClient httpClient;
+	private PoolingHttpClientConnectionManager connectionManager;
+	private final GzipCompressor compressor;
 	
 	String webhookUrl = null;
 	WebhookFormat webhookFormat = null;
+	// only used by batched formats
+	MessageBatcher<String> batcher = null;
+	private int maxBatchRetries;
+	private ScheduledThreadPoolExecutor retryScheduler = null;
+	// scheduled retries which did not start yet, close() posts them right away
+	private final Set<BatchRetry> pendingRetries = ConcurrentHashMap.newKeySet();
 	final boolean verifySSL;
 	final KeyStore effectiveTruststore;
 
@@ -68,6 +99,7 @@ class WebhookAuditLog extends AuditLogSink {
 		final String format = settings.get(ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_WEBHOOK_FORMAT);
 		
 		verifySSL = settings.getAsBoolean(ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_WEBHOOK_SSL_VERIFY, true);
+		compressor = createCompressor(settings);
 		httpClient = getHttpClient();
 		
 		if(httpClient == null) {
@@ -99,6 +131,28 @@ class WebhookAuditLog extends AuditLogSink {
 				webhookFormat = WebhookFormat.TEXT;
 			}
 		}
+		
+		if (webhookFormat.isBatched()) {
+		    final int maxMessages = settings.getAsInt("searchguard.audit.config.webhook.batch.max_messages", 100);
+		    final ByteSizeValue maxSize = settings.getAsBytesSize("searchguard.audit.config.webhook.batch.max_size", new ByteSizeValue(1, ByteSizeUnit.MB));
+		    final TimeValue linger = settings.getAsTime("searchguard.audit.config.webhook.batch.linger", TimeValue.timeValueSeconds(1));
+		    maxBatchRetries = Math.max(0, settings.getAsInt("searchguard.audit.config.webhook.batch.max_retries", 3));
+		    retryScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+		        @Override
+		        public Thread newThread(Runnable r) {
+		            final Thread thread = new Thread(r, "searchguard_audit_webhook_retry");
+		            thread.setDaemon(true);
+		            return thread;
+		        }
+		    });
+		    
+		    batcher = new MessageBatcher<String>("webhook", maxMessages, maxSize.getBytes(), linger.millis(), new MessageBatcher.BatchHandler<String>() {
+		        @Override
+		        public void handle(final List<String> batch) {
+		            postBatchPrivileged(batch, 0);
+		        }
+		    });
+		}
 	}
 
 	@Override
@@ -131,12 +185,14 @@ class WebhookAuditLog extends AuditLogSink {
 					}
 					// log something in case endpoint is not reachable or did not return 200
 					if (!success) {
+						deliveryFailed();
 						log.error(msg.toString());
 					}
 					return null;					
 				} catch(Throwable t) {
 					log.error("Uncaught exception while trying to log message.", t);
 					log.error(msg.toString());
+					deliveryFailed();
 					return null;
 				}
 			}			
@@ -145,9 +201,30 @@ class WebhookAuditLog extends AuditLogSink {
 
     @Override
     public void close() throws IOException { 
+        if(batcher != null) {
+            batcher.close();
+        }
+        
+        if(retryScheduler != null) {
+            // tasks of a shut down ScheduledThreadPoolExecutor are cancelled when run, so the pending retries 
+            // (e.g. of the last batch flushed above) are posted from here, retries failing from now on are logged
+            retryScheduler.shutdownNow();
+            for (final BatchRetry retry : pendingRetries) {
+                retry.run();
+            }
+        }
+        
+        if(log.isDebugEnabled()) {
+            log.debug("Webhook connection pool statistics: {}", getPoolStats());
+        }
+        
         if(httpClient != null) {
         	httpClient.close();
         }
+        
+        if(compressor != null) {
+            compressor.close();
+        }
     }
 
 	
@@ -259,6 +336,14 @@ class WebhookAuditLog extends AuditLogSink {
 			payload = "";
 			url = webhookUrl + formatUrlParameters(msg);
 			break;
+		case JSON_ARRAY:
+		case NDJSON:
+		    // sent later together with other messages, see postBatch()
+		    payload = formatJson(msg);
+		    // batch.max_size is in bytes of the UTF-8 encoded request body
+		    deliveryStarted(1);
+		    batcher.add(payload, payload.getBytes(StandardCharsets.UTF_8).length);
+		    return true;
 		default:
 			log.error("WebhookFormat '{}' not implemented yet", webhookFormat.name());
 			return false;
@@ -268,13 +353,158 @@ class WebhookAuditLog extends AuditLogSink {
 
 	}
 	
+	private void postBatchPrivileged(final List<String> batch, final int attempt) {
+	    AccessController.doPrivileged(new PrivilegedAction<Void>() {
+	        @Override
+	        public Void run() {
+	            postBatch(batch, attempt);
+	            return null;
+	        }
+	    });
+	}
+	
+	/**
+	 * Send a batch of JSON formatted messages as one request. Transient failures (endpoint not reachable or 5xx) 
+	 * are retried up to maxBatchRetries times on the retry thread with an exponential backoff, the calling thread 
+	 * never waits. If the endpoint rejects the batch (4xx) its messages are sent one by one, so a single bad message 
+	 * or a too large payload does not discard the whole batch.
+	 */
+	private void postBatch(final List<String> batch, final int attempt) {
+	    final int status = doPostBatch(webhookUrl, formatBatch(batch));
+	    
+	    if (status == HttpStatus.SC_OK) {
+	        deliveryCompleted(batch.size());
+	        return;
+	    }
+	    
+	    deliveryFailed();
+	    
+	    if (status >= 400 && status < 500) {
+	        if (batch.size() == 1) {
+	            log.error(batch.get(0));
+	            deliveryCompleted(1);
+	            return;
+	        }
+	        
+	        if (log.isDebugEnabled()) {
+	            log.debug("Webhook rejected batch of {} messages with status {}, retry them one by one", batch.size(), status);
+	        }
+	        
+	        for (final String msg : batch) {
+	            postBatch(Collections.singletonList(msg), 0);
+	        }
+	        return;
+	    }
+	    
+	    retryLater(batch, attempt);
+	}
+	
+	private void retryLater(final List<String> batch, final int attempt) {
+	    if (attempt < maxBatchRetries) {
+	        final BatchRetry retry = new BatchRetry(batch, attempt + 1);
+	        pendingRetries.add(retry);
+	        
+	        try {
+	            retryScheduler.schedule(retry, 100L << Math.min(attempt, 16), TimeUnit.MILLISECONDS);
+	            return;
+	        } catch (RejectedExecutionException e) {
+	            if (!pendingRetries.remove(retry)) {
+	                return;
+	            }
+	            log.error("Unable to retry batch of {} messages because the audit log is closed", batch.size());
+	        }
+	    }
+	    
+	    logBatch(batch);
+	    deliveryCompleted(batch.size());
+	}
+	
+	private void logBatch(final List<String> batch) {
+	    // log something in case endpoint is not reachable or did not return 200
+	    for (final String msg : batch) {
+	        log.error(msg);
+	    }
+	}
+	
+	int getPendingRetries() {
+	    return pendingRetries.size();
+	}
+	
+	/**
+	 * A scheduled retry, posted either by the retry thread or by close(), whichever removes it from the pending retries first.
+	 */
+	private final class BatchRetry implements Runnable {
+	    
+	    private final List<String> batch;
+	    private final int attempt;
+	    
+	    BatchRetry(final List<String> batch, final int attempt) {
+	        this.batch = batch;
+	        this.attempt = attempt;
+	    }
+	    
+	    @Override
+	    public void run() {
+	        if (pendingRetries.remove(this)) {
+	            postBatchPrivileged(batch, attempt);
+	        }
+	    }
+	}
+	
+	String formatBatch(final List<String> batch) {
+	    final StringBuilder payload = new StringBuilder(batch.size() * 512);
+	    
+	    switch (webhookFormat) {
+	    case JSON_ARRAY:
+	        payload.append('[');
+	        for (int i = 0; i < batch.size(); i++) {
+	            if (i > 0) {
+	                payload.append(',');
+	            }
+	            payload.append(batch.get(i));
+	        }
+	        payload.append(']');
+	        break;
+	    case NDJSON:
+	    default:
+	        for (final String msg : batch) {
+	            payload.append(msg).append('\n');
+	        }
+	    }
+	    
+	    return payload.toString();
+	}
+	
 	boolean doPost(String url, String payload) {
+	    return execute(url, payload) == HttpStatus.SC_OK;
+	}
+	
+	/**
+	 * @return the HTTP status code or -1 if the webhook could not be reached
+	 */
+	int doPostBatch(String url, String payload) {
+	    return execute(url, payload);
+	}
+	
+	private HttpEntity createEntity(final String payload) {
+	    final byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+	    
+	    if (compressor == null || !compressor.shouldCompress(bytes.length)) {
+	        final ByteArrayEntity input = new ByteArrayEntity(bytes);
+	        input.setContentType(webhookFormat.contentType.toString());
+	        return input;
+	    }
+	    
+	    final ByteArrayEntity input = new ByteArrayEntity(compressor.compress(bytes));
+	    input.setContentType(webhookFormat.contentType.toString());
+	    input.setContentEncoding(GzipCompressor.CONTENT_ENCODING);
+	    return input;
+	}
+	
+	private int execute(String url, String payload) {
 
 		HttpPost postRequest = new HttpPost(url);
-
-		StringEntity input = new StringEntity(payload, StandardCharsets.UTF_8);
-		input.setContentType(webhookFormat.contentType.toString());
-		postRequest.setEntity(input);
+		postRequest.setEntity(createEntity(payload));
 
 		CloseableHttpResponse serverResponse = null;
 		try {
@@ -282,12 +512,11 @@ class WebhookAuditLog extends AuditLogSink {
 			int responseCode = serverResponse.getStatusLine().getStatusCode();
 			if (responseCode != HttpStatus.SC_OK) {
 				log.error("Cannot POST to webhook URL '{}', server returned status {}", webhookUrl, responseCode);
-				return false;
 			}
-			return true;
+			return responseCode;
 		} catch (Throwable e) {
 			log.error("Cannot POST to webhook URL '{}' due to '{}'", webhookUrl, e.getMessage(), e);
-			return false;
+			return -1;
 		} finally {
 			try {
 				if (serverResponse != null) {
@@ -351,34 +580,58 @@ class WebhookAuditLog extends AuditLogSink {
 
 	    try {
 	        
+	        final SSLConnectionSocketFactory sslSocketFactory;
+	        
 	        if(!verifySSL) {
-	            return HttpClients.custom()
-	                    .setSSLSocketFactory(
-	                            new SSLConnectionSocketFactory(
+	            sslSocketFactory = new SSLConnectionSocketFactory(
 	                                    new SSLContextBuilder()
 	                                    .loadTrustMaterial(trustAllStrategy)
 	                                    .build(),
-	                                    NoopHostnameVerifier.INSTANCE))
-	                    .setDefaultRequestConfig(config)
-	                    .build();   
-	        }
-	        
-	        if(effectiveTruststore == null) {
-	            return HttpClients.custom()
-                        .setDefaultRequestConfig(config)
-                        .build();  
-	        }
-
-		    return HttpClients.custom()
-		            .setSSLSocketFactory(
-		                    new SSLConnectionSocketFactory(
+	                                    NoopHostnameVerifier.INSTANCE);
+	        } else if(effectiveTruststore == null) {
+	            sslSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
+	        } else {
+	            sslSocketFactory = new SSLConnectionSocketFactory(
 		                            new SSLContextBuilder()
 		                            .loadTrustMaterial(effectiveTruststore, null)
 		                            .build(),
-		                            new DefaultHostnameVerifier()))
-		            .setDefaultRequestConfig(config)
-		            .build();	
-		    
+		                            new DefaultHostnameVerifier());
+	        }
+	        
+	        final Registry<ConnectionSocketFactory> socketFactoryRegistry = RegistryBuilder.<ConnectionSocketFactory>create()
+	                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+	                .register("https", sslSocketFactory)
+	                .build();
+	        
+	        // the default pool allows only 2 connections per route, too few for the audit log consumer threads
+	        connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
+	        connectionManager.setMaxTotal(settings.getAsInt("searchguard.audit.config.webhook.max_connections", 20));
+	        connectionManager.setDefaultMaxPerRoute(settings.getAsInt("searchguard.audit.config.webhook.max_connections_per_route", 10));
+	        connectionManager.setValidateAfterInactivity((int) settings.getAsTime("searchguard.audit.config.webhook.validate_after_inactivity", 
+	                TimeValue.timeValueSeconds(2)).millis());
+	        
+	        final long keepAliveMillis = settings.getAsTime("searchguard.audit.config.webhook.keep_alive", TimeValue.timeValueSeconds(30)).millis();
+	        final long maxIdleMillis = settings.getAsTime("searchguard.audit.config.webhook.max_idle_time", TimeValue.timeValueSeconds(60)).millis();
+	        
+	        if(log.isDebugEnabled()) {
+	            log.debug("Webhook connection pool with maxTotal: {}, maxPerRoute: {}, keepAlive: {}ms, maxIdleTime: {}ms", 
+	                    connectionManager.getMaxTotal(), connectionManager.getDefaultMaxPerRoute(), keepAliveMillis, maxIdleMillis);
+	        }
+	        
+	        return HttpClients.custom()
+	                .setConnectionManager(connectionManager)
+	                .setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+	                    @Override
+	                    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+	                        // honor a shorter keep alive announced by the server
+	                        final long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+	                        return serverKeepAlive > 0 ? Math.min(serverKeepAlive, keepAliveMillis) : keepAliveMillis;
+	                    }
+	                })
+	                .evictExpiredConnections()
+	                .evictIdleConnections(maxIdleMillis, TimeUnit.MILLISECONDS)
+	                .setDefaultRequestConfig(config)
+	                .build();
 		    
 	    } catch(Exception ex) {
 	    	log.error("Could not create HTTPClient due to {}, audit log not available.", ex.getMessage(), ex);
@@ -386,19 +639,38 @@ class WebhookAuditLog extends AuditLogSink {
 	    }
 	}
 	
+	/**
+	 * @return the statistics of the connection pool, e.g. the number of leased, available and pending connections
+	 */
+	PoolStats getPoolStats() {
+	    return connectionManager == null ? null : connectionManager.getTotalStats();
+	}
+	
 	public static enum WebhookFormat {
 		URL_PARAMETER_GET(HttpMethod.GET, ContentType.TEXT_PLAIN),
 		URL_PARAMETER_POST(HttpMethod.POST, ContentType.TEXT_PLAIN),
 		TEXT(HttpMethod.POST, ContentType.TEXT_PLAIN),
 		JSON(HttpMethod.POST, ContentType.APPLICATION_JSON),
-		SLACK(HttpMethod.POST, ContentType.APPLICATION_JSON);
+		SLACK(HttpMethod.POST, ContentType.APPLICATION_JSON),
+		JSON_ARRAY(HttpMethod.POST, ContentType.APPLICATION_JSON, true),
+		NDJSON(HttpMethod.POST, ContentType.create("application/x-ndjson", StandardCharsets.UTF_8), true);
 
 		private HttpMethod method;
 		private ContentType contentType;
+		private boolean batched;
 
 		private WebhookFormat(HttpMethod method, ContentType contentType) {
+			this(method, contentType, false);
+		}
+		
+		private WebhookFormat(HttpMethod method, ContentType contentType, boolean batched) {
 			this.method = method;
 			this.contentType = contentType;
+			this.batched = batched;
+		}
+		
+		boolean isBatched() {
+			return batched;
 		}
 
 		HttpMethod getMethod() {
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.httpclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request bodies into the gzip format (RFC 1952) for a {@code Content-Encoding: gzip} header.
+ * <p>
+ * {@link java.util.zip.GZIPOutputStream} allocates a new native zlib stream per request which is only
+ * freed by the finalizer. Instead raw {@link Deflater}s are borrowed from a small pool and the gzip header and
+ * trailer are written by hand. {@link #close()} releases the native memory of the pooled deflaters.
+ */
+public final class GzipCompressor implements Closeable {
+
+    public static final String CONTENT_ENCODING = "gzip";
+
+    private static final byte[] HEADER = new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+    private static final int TRAILER_BYTES = 8;
+
+    private final int level;
+    private final int minSize;
+    private final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<Deflater>(Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private volatile boolean closed;
+    private final ThreadLocal<byte[]> buffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    /**
+     * @param level the compression level (0-9, -1 for the zlib default)
+     * @param minSize bodies smaller than this are not worth compressing
+     */
+    public GzipCompressor(final int level, final int minSize) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        }
+
+        this.level = level;
+        this.minSize = Math.max(0, minSize);
+    }
+
+    public boolean shouldCompress(final int length) {
+        return length >= minSize;
+    }
+
+    public byte[] compress(final byte[] input) {
+        final Deflater deflater = borrow();
+        final byte[] buffer = this.buffer.get();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER.length + input.length / 4 + TRAILER_BYTES + 64);
+
+        try {
+            deflater.setInput(input);
+            deflater.finish();
+
+            out.write(HEADER, 0, HEADER.length);
+
+            while (!deflater.finished()) {
+                final int length = deflater.deflate(buffer);
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            release(deflater);
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(input, 0, input.length);
+        writeIntLE(out, (int) crc.getValue());
+        writeIntLE(out, input.length);
+
+        return out.toByteArray();
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * Ends the pooled deflaters, deflaters still in use are ended when they are returned.
+     */
+    @Override
+    public void close() {
+        closed = true;
+
+        Deflater deflater;
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    private Deflater borrow() {
+        final Deflater deflater = deflaters.poll();
+        // nowrap: no zlib header, we write the gzip header ourselves
+        return deflater == null ? new Deflater(level, true) : deflater;
+    }
+
+    private void release(final Deflater deflater) {
+        deflater.reset();
+
+        if (closed || !deflaters.offer(deflater)) {
+            deflater.end();
+        } else if (closed && deflaters.remove(deflater)) {
+            // close() ran concurrently and may have missed it
+            deflater.end();
+        }
+    }
+
+    private static void writeIntLE(final ByteArrayOutputStream out, final int value) {
+        out.write(value);
+        out.write(value >>> 8);
+        out.write(value >>> 16);
+        out.write(value >>> 24);
+    }
+}
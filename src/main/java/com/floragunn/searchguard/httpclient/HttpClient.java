@@ -14,6 +14,7 @@
 
 package com.floragunn.searchguard.httpclient;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.Socket;
@@ -25,6 +26,9 @@ import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
@@ -33,9 +37,12 @@ import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import javax.xml.bind.DatatypeConverter;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.conn.ssl.DefaultHostnameVerifier;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
@@ -45,20 +52,44 @@ import org.apache.http.ssl.PrivateKeyDetails;
 import org.apache.http.ssl.PrivateKeyStrategy;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.apache.http.ssl.SSLContexts;
+import org.apache.http.util.EntityUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseListener;
 import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.xcontent.XContentHelper;
 import org.elasticsearch.common.xcontent.XContentType;
 
 import com.google.common.collect.Lists;
 
 public class HttpClient implements Closeable {
 
+    private static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+
+    /**
+     * Callback for {@link HttpClient#bulkAsync(List, List, String, boolean, BulkListener)}.
+     * Called on an I/O dispatcher thread, so implementations must not block.
+     */
+    public interface BulkListener {
+        /**
+         * @param failed the positions of the documents which could not be indexed
+         */
+        void onResponse(BitSet failed);
+        
+        /**
+         * The bulk request failed as a whole
+         */
+        void onFailure(Exception e);
+    }
+
     public static class HttpClientBuilder {
 
         private KeyStore trustStore;
@@ -69,6 +100,7 @@ public class HttpClient implements Closeable {
         private boolean verifyHostnames;
         private String[] supportedProtocols = null;
         private String[] supportedCipherSuites = null;
+        private GzipCompressor compressor = null;
         
         private final String[] servers;
         private boolean ssl;
@@ -110,9 +142,19 @@ public class HttpClient implements Closeable {
             return this;
         }
 
+        /**
+         * Compress the bodies of asynchronous bulk requests
+         */
+        public HttpClientBuilder enableGzipCompression(final GzipCompressor compressor) {
+            this.compressor = Objects.requireNonNull(compressor);
+            return this;
+        }
+
         public HttpClient build() throws Exception {
-            return new HttpClient(trustStore, basicCredentials, keystore, keyPassword, keystoreAlias, verifyHostnames, ssl,
+            final HttpClient client = new HttpClient(trustStore, basicCredentials, keystore, keyPassword, keystoreAlias, verifyHostnames, ssl,
                     supportedProtocols, supportedCipherSuites, servers);
+            client.compressor = compressor;
+            return client;
         }
         
         private static String encodeBasicHeader(final String username, final String password) {
@@ -136,6 +178,7 @@ public class HttpClient implements Closeable {
     private boolean ssl;
     private String[] supportedProtocols;
     private String[] supportedCipherSuites;
+    private GzipCompressor compressor;
 
     private HttpClient(final KeyStore trustStore, final String basicCredentials, final KeyStore keystore,
             final char[] keyPassword, final String keystoreAlias, final boolean verifyHostnames, final boolean ssl, String[] supportedProtocols, String[] supportedCipherSuites, final String... servers)
@@ -204,6 +247,106 @@ public class HttpClient implements Closeable {
             }
     }
 
+    /**
+     * Index all documents with a single bulk request without blocking the calling thread.
+     * 
+     * @param indices the target index of each document
+     * @param contents the serialized JSON source of each document, copied as is into the request body
+     */
+    public void bulkAsync(final List<String> indices, final List<? extends BytesReference> contents, final String type, final boolean refresh, final BulkListener listener) {
+
+            if (indices.size() != contents.size()) {
+                throw new IllegalArgumentException("Got "+indices.size()+" indices for "+contents.size()+" documents");
+            }
+
+            final Map<String, String> params = refresh?Collections.singletonMap("refresh", "true"):Collections.<String, String>emptyMap();
+
+            try {
+                final byte[] body = bulkBody(indices, contents, type);
+
+                rclient.getLowLevelClient().performRequestAsync("POST", "/_bulk", params, createEntity(body), new ResponseListener() {
+
+                    @Override
+                    public void onSuccess(Response response) {
+                        final BitSet failed;
+
+                        try {
+                            failed = parseBulkResponse(response, contents.size());
+                        } catch (Exception e) {
+                            listener.onFailure(e);
+                            return;
+                        }
+
+                        listener.onResponse(failed);
+                    }
+
+                    @Override
+                    public void onFailure(Exception exception) {
+                        listener.onFailure(exception);
+                    }
+                });
+            } catch (Exception e) {
+                listener.onFailure(e);
+            }
+    }
+
+    private static byte[] bulkBody(final List<String> indices, final List<? extends BytesReference> contents, final String type) throws IOException {
+        int size = 0;
+        for (final BytesReference content : contents) {
+            size += content.length() + 64;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(size);
+
+        for (int i = 0; i < contents.size(); i++) {
+            // index and type names can not contain quotes or backslashes, no need to escape them
+            out.write(("{\"index\":{\"_index\":\""+indices.get(i)+"\",\"_type\":\""+type+"\"}}\n").getBytes(StandardCharsets.UTF_8));
+            contents.get(i).writeTo(out);
+            out.write('\n');
+        }
+
+        return out.toByteArray();
+    }
+
+    private HttpEntity createEntity(final byte[] bytes) {
+        if (compressor == null || !compressor.shouldCompress(bytes.length)) {
+            return new ByteArrayEntity(bytes, NDJSON);
+        }
+
+        final ByteArrayEntity entity = new ByteArrayEntity(compressor.compress(bytes), NDJSON);
+        entity.setContentEncoding(GzipCompressor.CONTENT_ENCODING);
+        return entity;
+    }
+
+    @SuppressWarnings("unchecked")
+    private BitSet parseBulkResponse(final Response response, final int size) throws IOException {
+        final Map<String, Object> map = XContentHelper.convertToMap(new BytesArray(EntityUtils.toByteArray(response.getEntity())), false, XContentType.JSON).v2();
+        final BitSet failed = new BitSet(size);
+
+        if (!Boolean.TRUE.equals(map.get("errors"))) {
+            return failed;
+        }
+
+        final List<Object> items = (List<Object>) map.get("items");
+
+        for (int i = 0; i < items.size(); i++) {
+            // {"index":{"_index":...,"status":201}}
+            for (final Object item : ((Map<String, Object>) items.get(i)).values()) {
+                final Map<String, Object> result = (Map<String, Object>) item;
+                final Object status = result.get("status");
+
+                if (result.containsKey("error") || (status instanceof Number && ((Number) status).intValue() >= 300)) {
+                    failed.set(i);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Unable to index document {} of bulk due to {}", i, result.get("error"));
+                    }
+                }
+            }
+        }
+
+        return failed;
+    }
+
     private final HttpAsyncClientBuilder asyncClientBuilder(HttpAsyncClientBuilder httpClientBuilder) 
             throws NoSuchAlgorithmException, KeyStoreException, UnrecoverableKeyException, KeyManagementException {
 
@@ -273,5 +416,9 @@ public class HttpClient implements Closeable {
         if (rclient != null) {
             rclient.close();
         }
+
+        if (compressor != null) {
+            compressor.close();
+        }
     }
 }
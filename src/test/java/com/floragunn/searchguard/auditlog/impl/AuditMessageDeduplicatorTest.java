@@ -0,0 +1,157 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.auditlog.impl.AuditMessage.Category;
+
+public class AuditMessageDeduplicatorTest {
+
+    private static final long WINDOW = TimeUnit.HOURS.toMillis(1);
+
+    private final List<AuditMessage> emitted = new ArrayList<AuditMessage>();
+
+    @Test
+    public void testCollapseDuplicates() {
+        final AuditMessageDeduplicator deduplicator = deduplicator(100);
+
+        final AuditMessage first = MockAuditMessageFactory.validAuditMessage();
+        Assert.assertTrue(deduplicator.offer(first));
+
+        for (int i = 0; i < 9; i++) {
+            Assert.assertTrue(deduplicator.offer(MockAuditMessageFactory.validAuditMessage()));
+        }
+
+        final AuditMessage other = MockAuditMessageFactory.validAuditMessage();
+        other.addEffectiveUser("Jane Doe");
+        Assert.assertTrue(deduplicator.offer(other));
+
+        deduplicator.sweep(System.currentTimeMillis());
+        Assert.assertTrue(emitted.isEmpty());
+
+        deduplicator.sweep(System.currentTimeMillis() + WINDOW);
+        Assert.assertEquals(2, emitted.size());
+        Assert.assertEquals(9, deduplicator.getSuppressed());
+
+        Assert.assertTrue(emitted.contains(first));
+        Assert.assertTrue(emitted.contains(other));
+        Assert.assertEquals(10, first.getAsMap().get(AuditMessage.OCCURRENCES));
+        Assert.assertNotNull(first.getAsMap().get(AuditMessage.FIRST_OCCURRENCE));
+        Assert.assertNotNull(first.getAsMap().get(AuditMessage.LAST_OCCURRENCE));
+        Assert.assertNull(other.getAsMap().get(AuditMessage.OCCURRENCES));
+
+        // a new window is opened
+        Assert.assertTrue(deduplicator.offer(MockAuditMessageFactory.validAuditMessage()));
+        deduplicator.close();
+        Assert.assertEquals(3, emitted.size());
+        Assert.assertFalse(deduplicator.offer(MockAuditMessageFactory.validAuditMessage()));
+    }
+
+    @Test
+    public void testBounded() {
+        final AuditMessageDeduplicator deduplicator = deduplicator(1);
+
+        Assert.assertTrue(deduplicator.offer(MockAuditMessageFactory.validAuditMessage()));
+        Assert.assertTrue(deduplicator.offer(MockAuditMessageFactory.validAuditMessage()));
+
+        final AuditMessage other = MockAuditMessageFactory.validAuditMessage();
+        other.addEffectiveUser("Jane Doe");
+        Assert.assertFalse(deduplicator.offer(other));
+        Assert.assertEquals(1, deduplicator.getPassedThrough());
+
+        deduplicator.close();
+        Assert.assertEquals(1, emitted.size());
+    }
+
+    @Test
+    public void testOtherCategoriesPassThrough() {
+        final AuditMessageDeduplicator deduplicator = new AuditMessageDeduplicator(EnumSet.of(Category.MISSING_PRIVILEGES),
+                Arrays.asList(AuditMessage.CATEGORY), WINDOW, 100, emitted::add);
+
+        Assert.assertFalse(deduplicator.offer(MockAuditMessageFactory.validAuditMessage()));
+        deduplicator.close();
+        Assert.assertTrue(emitted.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentClose() throws Exception {
+        final List<AuditMessage> concurrentlyEmitted = Collections.synchronizedList(new ArrayList<AuditMessage>());
+        final AuditMessageDeduplicator deduplicator = new AuditMessageDeduplicator(EnumSet.of(Category.FAILED_LOGIN),
+                Arrays.asList(AuditMessage.CATEGORY, AuditMessage.REQUEST_EFFECTIVE_USER), WINDOW, 100 * 1000, concurrentlyEmitted::add);
+        final int producerCount = 4;
+        final int messagesPerProducer = 5000;
+        final AtomicInteger rejected = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(producerCount);
+        final List<Thread> producers = new ArrayList<Thread>();
+
+        for (int i = 0; i < producerCount; i++) {
+            final List<AuditMessage> messages = new ArrayList<AuditMessage>(messagesPerProducer);
+            for (int j = 0; j < messagesPerProducer; j++) {
+                final AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+                // mostly new windows
+                msg.addEffectiveUser("user" + i + "_" + (j % 1000));
+                messages.add(msg);
+            }
+
+            final Thread producer = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    for (final AuditMessage msg : messages) {
+                        if (!deduplicator.offer(msg)) {
+                            rejected.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            producer.start();
+            producers.add(producer);
+        }
+
+        started.await();
+        deduplicator.close();
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        // every message is either emitted, counted as an occurrence of an emitted one or handed back
+        int accounted = rejected.get();
+        synchronized (concurrentlyEmitted) {
+            for (final AuditMessage msg : concurrentlyEmitted) {
+                final Object occurrences = msg.getAsMap().get(AuditMessage.OCCURRENCES);
+                accounted += occurrences == null ? 1 : ((Number) occurrences).intValue();
+            }
+        }
+
+        Assert.assertEquals(producerCount * messagesPerProducer, accounted);
+    }
+
+    private AuditMessageDeduplicator deduplicator(final int maxEntries) {
+        return new AuditMessageDeduplicator(EnumSet.of(Category.FAILED_LOGIN),
+                Arrays.asList(AuditMessage.CATEGORY, AuditMessage.REQUEST_EFFECTIVE_USER, AuditMessage.INDICES), WINDOW, maxEntries, emitted::add);
+    }
+}
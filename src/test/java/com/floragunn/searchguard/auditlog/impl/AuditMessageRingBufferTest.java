@@ -0,0 +1,345 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.auditlog.impl.AuditMessageRingBuffer.OverflowPolicy;
+import com.floragunn.searchguard.auditlog.impl.AuditMessageRingBuffer.WaitStrategy;
+
+public class AuditMessageRingBufferTest {
+
+    @Test
+    public void testCapacity() {
+        Assert.assertEquals(1, AuditMessageRingBuffer.capacityFor(1));
+        Assert.assertEquals(4, AuditMessageRingBuffer.capacityFor(3));
+        Assert.assertEquals(1024, AuditMessageRingBuffer.capacityFor(1024));
+        Assert.assertEquals(131072, AuditMessageRingBuffer.capacityFor(100 * 1000));
+    }
+
+    @Test
+    public void testMultipleProducers() throws Exception {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            final CountingSink sink = new CountingSink(null);
+            final AuditMessageRingBuffer ringBuffer = new AuditMessageRingBuffer(sink, 3, 64, waitStrategy);
+            final AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+            final int producerCount = 4;
+            final int messagesPerProducer = 5000;
+            final List<Thread> producers = new ArrayList<Thread>();
+
+            for (int i = 0; i < producerCount; i++) {
+                final Thread producer = new Thread() {
+                    @Override
+                    public void run() {
+                        for (int j = 0; j < messagesPerProducer; j++) {
+                            while (!ringBuffer.offer(msg)) {
+                                Thread.yield();
+                            }
+                        }
+                    }
+                };
+                producer.start();
+                producers.add(producer);
+            }
+
+            for (Thread producer : producers) {
+                producer.join();
+            }
+
+            ringBuffer.shutdown();
+            Assert.assertTrue(ringBuffer.awaitTermination(10, TimeUnit.SECONDS));
+            Assert.assertEquals(waitStrategy.name(), producerCount * messagesPerProducer, sink.count.get());
+            Assert.assertFalse(ringBuffer.offer(msg));
+        }
+    }
+
+    @Test
+    public void testFullRingBuffer() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountingSink sink = new CountingSink(latch);
+        final AuditMessageRingBuffer ringBuffer = new AuditMessageRingBuffer(sink, 1, 4, WaitStrategy.BLOCKING);
+        final AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+
+        int accepted = 0;
+        while (ringBuffer.offer(msg)) {
+            accepted++;
+            Assert.assertTrue(accepted <= 5);
+        }
+
+        Assert.assertTrue(accepted >= 4);
+        latch.countDown();
+        ringBuffer.shutdown();
+        Assert.assertTrue(ringBuffer.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(accepted, sink.count.get());
+    }
+
+    @Test
+    public void testShutdownNow() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountingSink sink = new CountingSink(latch);
+        final AuditMessageRingBuffer ringBuffer = new AuditMessageRingBuffer(sink, 1, 16, WaitStrategy.SLEEPING);
+        final AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue(ringBuffer.offer(msg));
+        }
+
+        ringBuffer.shutdownNow();
+        latch.countDown();
+        Assert.assertTrue(ringBuffer.awaitTermination(10, TimeUnit.SECONDS));
+
+        int remaining = 0;
+        while (ringBuffer.poll() != null) {
+            remaining++;
+        }
+
+        Assert.assertEquals(10, sink.count.get() + remaining);
+    }
+
+    @Test
+    public void testStoredBefore() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountingSink sink = new CountingSink(latch);
+        final AuditMessageRingBuffer ringBuffer = new AuditMessageRingBuffer(sink, 2, 16, WaitStrategy.SLEEPING);
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(ringBuffer.offer(MockAuditMessageFactory.validAuditMessage()));
+        }
+
+        // both consumers are blocked in the sink
+        while (ringBuffer.size() > 1) {
+            Thread.sleep(1);
+        }
+
+        Assert.assertEquals(0, ringBuffer.storedBefore());
+
+        latch.countDown();
+        ringBuffer.shutdown();
+        Assert.assertTrue(ringBuffer.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(3, sink.count.get());
+        Assert.assertEquals(3, ringBuffer.storedBefore());
+    }
+
+    @Test
+    public void testOverflowDropNewest() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountingSink sink = new CountingSink(latch);
+        final AuditMessageRingBuffer ringBuffer = new AuditMessageRingBuffer(sink, 1, 4, WaitStrategy.SLEEPING, OverflowPolicy.DROP_NEWEST, 0,
+                TimeUnit.MILLISECONDS);
+
+        int accepted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (ringBuffer.publish(MockAuditMessageFactory.validAuditMessage())) {
+                accepted++;
+            }
+        }
+
+        latch.countDown();
+        ringBuffer.shutdown();
+        Assert.assertTrue(ringBuffer.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(20, accepted + ringBuffer.getDroppedNewest());
+        Assert.assertEquals(accepted, sink.count.get());
+        Assert.assertEquals(0, ringBuffer.getDroppedOldest());
+        Assert.assertEquals(Long.valueOf(ringBuffer.getDroppedNewest()), ringBuffer.getOverflowCounters().get("dropped_newest"));
+        Assert.assertEquals(Long.valueOf(0), ringBuffer.getOverflowCounters().get("dropped_oldest"));
+    }
+
+    @Test
+    public void testOverflowDropOldest() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountingSink sink = new CountingSink(latch);
+        final AuditMessageRingBuffer ringBuffer = new AuditMessageRingBuffer(sink, 1, 4, WaitStrategy.SLEEPING, OverflowPolicy.DROP_OLDEST, 0,
+                TimeUnit.MILLISECONDS);
+
+        AuditMessage last = null;
+        for (int i = 0; i < 20; i++) {
+            last = MockAuditMessageFactory.validAuditMessage();
+            Assert.assertTrue(ringBuffer.publish(last));
+        }
+
+        Assert.assertTrue(ringBuffer.getDroppedOldest() >= 15);
+        latch.countDown();
+        ringBuffer.shutdown();
+        Assert.assertTrue(ringBuffer.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(20, sink.count.get() + ringBuffer.getDroppedOldest());
+        Assert.assertSame(last, sink.last);
+        Assert.assertEquals(0, ringBuffer.getDroppedNewest());
+    }
+
+    @Test
+    public void testOverflowBlock() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountingSink sink = new CountingSink(latch);
+        final AuditMessageRingBuffer ringBuffer = new AuditMessageRingBuffer(sink, 1, 4, WaitStrategy.SLEEPING, OverflowPolicy.BLOCK, 50,
+                TimeUnit.MILLISECONDS);
+
+        int accepted = 0;
+        while (ringBuffer.publish(MockAuditMessageFactory.validAuditMessage())) {
+            accepted++;
+            Assert.assertTrue(accepted <= 5);
+        }
+
+        Assert.assertEquals(1, ringBuffer.getBlockTimeouts());
+        Assert.assertTrue(ringBuffer.getBlocked() >= 1);
+
+        latch.countDown();
+        Assert.assertTrue(ringBuffer.publish(MockAuditMessageFactory.validAuditMessage()));
+        ringBuffer.shutdown();
+        Assert.assertTrue(ringBuffer.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(accepted + 1, sink.count.get());
+    }
+
+    @Test
+    public void testOverflowSpill() throws Exception {
+        final Path directory = Files.createTempDirectory("sg_audit_spill");
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CountingSink sink = new CountingSink(latch);
+
+        try (AuditMessageSpillQueue spillQueue = new AuditMessageSpillQueue(directory, 1024 * 1024, 64 * 1024, 1)) {
+            final AuditMessageRingBuffer ringBuffer = new AuditMessageRingBuffer(sink, 1, 4, WaitStrategy.SLEEPING, OverflowPolicy.SPILL, 0,
+                    TimeUnit.MILLISECONDS, spillQueue);
+
+            for (int i = 0; i < 20; i++) {
+                Assert.assertTrue(ringBuffer.publish(MockAuditMessageFactory.validAuditMessage()));
+            }
+
+            // the producer only handed the overflowing messages over, the spill writer appends them
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (ringBuffer.getSpilled() < 15 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            Assert.assertTrue(ringBuffer.getSpilled() >= 15);
+            Assert.assertEquals(0, ringBuffer.getDroppedNewest());
+
+            latch.countDown();
+            while (sink.count.get() < 20 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+
+            ringBuffer.shutdown();
+            Assert.assertTrue(ringBuffer.awaitTermination(10, TimeUnit.SECONDS));
+            Assert.assertNull(ringBuffer.pollUnstored());
+            Assert.assertEquals(20, sink.count.get());
+            Assert.assertEquals(ringBuffer.getSpilled(), ringBuffer.getReplayed());
+        } finally {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (final Path file : stream) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testReplayIsCommittedOnlyAfterDelivery() throws Exception {
+        final Path directory = Files.createTempDirectory("sg_audit_spill");
+
+        try {
+            Assert.assertEquals(5, replay(directory, false));
+            // kept on disk, the asynchronous sink never confirmed the delivery
+            Assert.assertEquals(5, replay(directory, true));
+            Assert.assertEquals(0, replay(directory, true));
+        } finally {
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (final Path file : stream) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Replay the messages spilled to the directory (5 new ones if it is empty) into a sink which delivers asynchronously.
+     *
+     * @return the number of replayed messages
+     */
+    private static int replay(final Path directory, final boolean deliver) throws Exception {
+        final AtomicInteger stored = new AtomicInteger();
+        final AuditLogSink sink = new AuditLogSink(Settings.EMPTY, null, null, null) {
+            @Override
+            public void store(AuditMessage msg) {
+                deliveryStarted(1);
+                stored.incrementAndGet();
+                if (deliver) {
+                    deliveryCompleted(1);
+                }
+            }
+        };
+
+        try (AuditMessageSpillQueue spillQueue = new AuditMessageSpillQueue(directory, 1024 * 1024, 64 * 1024, 1)) {
+            if (spillQueue.isEmpty() && !deliver) {
+                for (int i = 0; i < 5; i++) {
+                    Assert.assertTrue(spillQueue.append(MockAuditMessageFactory.validAuditMessage()));
+                }
+            }
+
+            final AuditMessageRingBuffer ringBuffer = new AuditMessageRingBuffer(sink, 1, 16, WaitStrategy.SLEEPING, OverflowPolicy.SPILL, 0,
+                    TimeUnit.MILLISECONDS, spillQueue);
+            ringBuffer.start();
+
+            final long deadline = System.currentTimeMillis() + 10000;
+            while ((!spillQueue.isEmpty() || stored.get() < ringBuffer.getReplayed()) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // give the replayer the chance to commit
+            Thread.sleep(300);
+
+            ringBuffer.shutdown();
+            Assert.assertTrue(ringBuffer.awaitTermination(10, TimeUnit.SECONDS));
+            Assert.assertNull(ringBuffer.pollUnstored());
+        }
+
+        return stored.get();
+    }
+
+    private static class CountingSink extends AuditLogSink {
+
+        final AtomicInteger count = new AtomicInteger();
+        volatile AuditMessage last;
+        private final CountDownLatch latch;
+
+        CountingSink(final CountDownLatch latch) {
+            super(Settings.EMPTY, null, null, null);
+            this.latch = latch;
+        }
+
+        @Override
+        public void store(AuditMessage msg) {
+            try {
+                if (latch != null) {
+                    latch.await();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            last = msg;
+            count.incrementAndGet();
+        }
+    }
+}
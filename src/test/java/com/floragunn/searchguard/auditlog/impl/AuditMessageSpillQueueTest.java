@@ -0,0 +1,230 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AuditMessageSpillQueueTest {
+
+    private Path directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("sg_audit_spill");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (final Path file : stream) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Test
+    public void testAppendAndPollWithRotation() throws Exception {
+        try (AuditMessageSpillQueue queue = new AuditMessageSpillQueue(directory, 1024 * 1024, 100, 3)) {
+            Assert.assertTrue(queue.isEmpty());
+            Assert.assertNull(queue.pollRecord());
+
+            for (int i = 0; i < 50; i++) {
+                Assert.assertTrue(queue.appendRecord(record(i)));
+            }
+
+            Assert.assertTrue(segmentCount() > 1);
+            Assert.assertFalse(queue.isEmpty());
+
+            for (int i = 0; i < 50; i++) {
+                Assert.assertEquals("msg" + i, new String(queue.pollRecord(), StandardCharsets.UTF_8));
+            }
+
+            Assert.assertNull(queue.pollRecord());
+            Assert.assertTrue(queue.isEmpty());
+            // consumed segments are only deleted on commit
+            Assert.assertTrue(segmentCount() > 1);
+            queue.commit();
+            Assert.assertEquals(1, segmentCount());
+        }
+    }
+
+    @Test
+    public void testResumeAfterCrashAtCommittedOffset() throws Exception {
+        // never closed, simulates a crash
+        final AuditMessageSpillQueue crashed = new AuditMessageSpillQueue(directory, 1024 * 1024, 100, 1);
+
+        for (int i = 0; i < 20; i++) {
+            Assert.assertTrue(crashed.appendRecord(record(i)));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNotNull(crashed.pollRecord());
+        }
+
+        final AuditMessageSpillQueue.Offset offset = crashed.offset();
+        final int segments = segmentCount();
+
+        for (int i = 10; i < 15; i++) {
+            Assert.assertNotNull(crashed.pollRecord());
+        }
+
+        // records 10 to 14 were polled but not yet stored
+        crashed.commit(offset);
+        Assert.assertEquals(segments - 1, segmentCount());
+
+        try (AuditMessageSpillQueue queue = new AuditMessageSpillQueue(directory, 1024 * 1024, 100, 1)) {
+            for (int i = 10; i < 20; i++) {
+                Assert.assertEquals("msg" + i, new String(queue.pollRecord(), StandardCharsets.UTF_8));
+            }
+
+            Assert.assertNull(queue.pollRecord());
+        }
+    }
+
+    @Test
+    public void testRewind() throws Exception {
+        try (AuditMessageSpillQueue queue = new AuditMessageSpillQueue(directory, 1024 * 1024, 100, 1)) {
+            for (int i = 0; i < 20; i++) {
+                Assert.assertTrue(queue.appendRecord(record(i)));
+            }
+
+            // nothing committed yet, back to the first record
+            Assert.assertNotNull(queue.pollRecord());
+            queue.rewind();
+            Assert.assertEquals("msg0", new String(queue.pollRecord(), StandardCharsets.UTF_8));
+
+            for (int i = 1; i < 5; i++) {
+                Assert.assertNotNull(queue.pollRecord());
+            }
+
+            queue.commit();
+
+            // across segments
+            for (int i = 5; i < 15; i++) {
+                Assert.assertNotNull(queue.pollRecord());
+            }
+
+            queue.rewind();
+
+            for (int i = 5; i < 20; i++) {
+                Assert.assertEquals("msg" + i, new String(queue.pollRecord(), StandardCharsets.UTF_8));
+            }
+
+            Assert.assertNull(queue.pollRecord());
+        }
+    }
+
+    @Test
+    public void testResumeAtCommittedOffset() throws Exception {
+        try (AuditMessageSpillQueue queue = new AuditMessageSpillQueue(directory, 1024 * 1024, 100, 1)) {
+            for (int i = 0; i < 20; i++) {
+                Assert.assertTrue(queue.appendRecord(record(i)));
+            }
+
+            for (int i = 0; i < 5; i++) {
+                Assert.assertNotNull(queue.pollRecord());
+            }
+
+            queue.commit();
+            Assert.assertNotNull(queue.pollRecord());
+            // close() commits as well
+        }
+
+        try (AuditMessageSpillQueue queue = new AuditMessageSpillQueue(directory, 1024 * 1024, 100, 1)) {
+            Assert.assertEquals("msg6", new String(queue.pollRecord(), StandardCharsets.UTF_8));
+            Assert.assertTrue(queue.appendRecord(record(20)));
+
+            for (int i = 7; i <= 20; i++) {
+                Assert.assertEquals("msg" + i, new String(queue.pollRecord(), StandardCharsets.UTF_8));
+            }
+
+            Assert.assertNull(queue.pollRecord());
+        }
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        try (AuditMessageSpillQueue queue = new AuditMessageSpillQueue(directory, 60, 1000, 1)) {
+            // 8 bytes header + 4 bytes payload
+            for (int i = 0; i < 5; i++) {
+                Assert.assertTrue(queue.appendRecord(record(i)));
+            }
+
+            Assert.assertEquals(60, queue.sizeInBytes());
+            Assert.assertFalse(queue.appendRecord(record(5)));
+        }
+    }
+
+    @Test
+    public void testCorruptedRecordIsSkipped() throws Exception {
+        try (AuditMessageSpillQueue queue = new AuditMessageSpillQueue(directory, 1024 * 1024, 1024, 1)) {
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(queue.appendRecord(record(i)));
+            }
+        }
+
+        // flip a payload byte of the second record
+        final Path segment = firstSegment();
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] { 'X' }), 12 + 8);
+        }
+
+        try (AuditMessageSpillQueue queue = new AuditMessageSpillQueue(directory, 1024 * 1024, 1024, 1)) {
+            Assert.assertTrue(queue.appendRecord(record(3)));
+            Assert.assertEquals("msg0", new String(queue.pollRecord(), StandardCharsets.UTF_8));
+            Assert.assertEquals("msg3", new String(queue.pollRecord(), StandardCharsets.UTF_8));
+            Assert.assertNull(queue.pollRecord());
+        }
+    }
+
+    private static byte[] record(final int i) {
+        return ("msg" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private int segmentCount() throws IOException {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.seg")) {
+            for (@SuppressWarnings("unused") final Path segment : stream) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Path firstSegment() throws IOException {
+        Path first = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.seg")) {
+            for (final Path segment : stream) {
+                if (first == null || segment.compareTo(first) < 0) {
+                    first = segment;
+                }
+            }
+        }
+        return first;
+    }
+}
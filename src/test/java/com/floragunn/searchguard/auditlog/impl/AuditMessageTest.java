@@ -0,0 +1,48 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AuditMessageTest {
+
+    @Test
+    public void testGetAsMapAndRestore() {
+        final AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+        msg.addIndices(new String[] { "index1", "index2" });
+
+        final Map<String, Object> map = msg.getAsMap();
+        Assert.assertEquals(3, map.get(AuditMessage.FORMAT_VERSION));
+        Assert.assertEquals("John Doe", map.get(AuditMessage.REQUEST_EFFECTIVE_USER));
+        Assert.assertEquals("IndexRequest", map.get(AuditMessage.TRANSPORT_REQUEST_TYPE));
+        Assert.assertArrayEquals(new String[] { "index1", "index2" }, (String[]) map.get(AuditMessage.INDICES));
+        Assert.assertFalse(map.containsKey(AuditMessage.REQUEST_INITIATING_USER));
+
+        // unknown fields are kept as well
+        map.put("audit_custom_field", "custom");
+        final AuditMessage restored = new AuditMessage(map);
+
+        Assert.assertEquals(map, restored.getAsMap());
+        Assert.assertEquals(msg.getCategory(), restored.getCategory());
+        Assert.assertEquals("John Doe", restored.getEffectiveUser());
+        Assert.assertNull(restored.getInitiatingUser());
+        Assert.assertTrue(restored.toText().contains("audit_custom_field: custom"));
+        Assert.assertTrue(restored.toText().contains(AuditMessage.TRANSPORT_REQUEST_TYPE + ": IndexRequest"));
+        Assert.assertFalse(restored.toText().contains(AuditMessage.REQUEST_INITIATING_USER));
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AuditTimestampFormatterTest {
+
+    private static final DateTimeFormatter FORMAT = DateTimeFormat.forPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+
+    @Test
+    public void testFormat() {
+        final long now = System.currentTimeMillis();
+        final long[] timestamps = new long[] { 0, 7, 999, 1000, 1496320496000L, 1496320496001L, 1496320496099L, 1496320496999L, 1496320497000L,
+                1496320496500L, now, now + 1, now + 1000 };
+
+        for (final long timestamp : timestamps) {
+            Assert.assertEquals(FORMAT.print(new DateTime(timestamp, DateTimeZone.UTC)), AuditTimestampFormatter.format(timestamp));
+        }
+
+        Assert.assertEquals("2017-06-01T12:34:56.001+00:00", AuditTimestampFormatter.format(1496320496001L));
+    }
+}
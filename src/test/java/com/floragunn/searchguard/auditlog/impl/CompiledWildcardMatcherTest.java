@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CompiledWildcardMatcherTest {
+
+    @Test
+    public void testLiteralsAndWildcards() {
+        final CompiledWildcardMatcher matcher = CompiledWildcardMatcher.compile(Arrays.asList("kibanaserver", "indices:data/read/*", "bot?",
+                "a.b*c", "/admin[0-9]+/"));
+
+        Assert.assertFalse(matcher.isEmpty());
+        Assert.assertTrue(matcher.matches("kibanaserver"));
+        Assert.assertFalse(matcher.matches("kibanaserver2"));
+        Assert.assertTrue(matcher.matches("indices:data/read/search"));
+        Assert.assertTrue(matcher.matches("indices:data/read/"));
+        Assert.assertFalse(matcher.matches("indices:data/write/index"));
+        Assert.assertTrue(matcher.matches("bot1"));
+        Assert.assertFalse(matcher.matches("bot"));
+        Assert.assertFalse(matcher.matches("bot12"));
+        // regex meta characters are literals in wildcard patterns
+        Assert.assertTrue(matcher.matches("a.bxxc"));
+        Assert.assertFalse(matcher.matches("axbxxc"));
+        Assert.assertTrue(matcher.matches("admin42"));
+        Assert.assertFalse(matcher.matches("admin"));
+        Assert.assertFalse(matcher.matches(null));
+    }
+
+    @Test
+    public void testClasses() {
+        final CompiledWildcardMatcher matcher = CompiledWildcardMatcher.compile(Arrays.asList("*Request"));
+
+        Assert.assertFalse(matcher.matchesSimpleName(IllegalStateException.class));
+        Assert.assertTrue(matcher.matchesSimpleName(Request.class));
+        Assert.assertTrue(matcher.matchesSimpleName(Request.class));
+        Assert.assertFalse(matcher.matchesSimpleName(null));
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertSame(CompiledWildcardMatcher.NONE, CompiledWildcardMatcher.compile(Collections.<String>emptyList()));
+        Assert.assertTrue(CompiledWildcardMatcher.NONE.isEmpty());
+        Assert.assertFalse(CompiledWildcardMatcher.NONE.matches("kibanaserver"));
+    }
+
+    private static class Request {
+    }
+}
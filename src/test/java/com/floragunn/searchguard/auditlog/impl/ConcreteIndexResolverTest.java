@@ -0,0 +1,81 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ConcreteIndexResolverTest {
+
+    @Test
+    public void testCachePerMetaDataVersion() {
+        final AtomicInteger resolutions = new AtomicInteger();
+        final IndexNameExpressionResolver resolver = new IndexNameExpressionResolver(Settings.EMPTY) {
+            @Override
+            public String[] concreteIndexNames(ClusterState state, IndicesOptions options, String... indexExpressions) {
+                resolutions.incrementAndGet();
+                return new String[] { "logs-1", "logs-2" };
+            }
+        };
+
+        final IndexMetaData open = mock(IndexMetaData.class);
+        when(open.getState()).thenReturn(IndexMetaData.State.OPEN);
+        final IndexMetaData closed = mock(IndexMetaData.class);
+        when(closed.getState()).thenReturn(IndexMetaData.State.CLOSE);
+
+        final MetaData metaData = mock(MetaData.class);
+        when(metaData.version()).thenReturn(1L);
+        when(metaData.index("logs-1")).thenReturn(open);
+        when(metaData.index("logs-2")).thenReturn(open);
+        when(metaData.index("closed")).thenReturn(closed);
+
+        final ClusterState state = mock(ClusterState.class);
+        when(state.metaData()).thenReturn(metaData);
+        final ClusterService clusterService = mock(ClusterService.class);
+        when(clusterService.state()).thenReturn(state);
+
+        final ConcreteIndexResolver indexResolver = new ConcreteIndexResolver(resolver, clusterService);
+
+        // names of open indices do not need the resolver
+        Assert.assertArrayEquals(new String[] { "logs-1", "logs-2" }, indexResolver.resolve(new String[] { "logs-1", "logs-2", "logs-1" }));
+        Assert.assertEquals(0, resolutions.get());
+
+        Assert.assertArrayEquals(new String[] { "logs-1", "logs-2" }, indexResolver.resolve(new String[] { "logs-*" }));
+        Assert.assertArrayEquals(new String[] { "logs-1", "logs-2" }, indexResolver.resolve(new String[] { "logs-*" }));
+        Assert.assertEquals(1, resolutions.get());
+
+        indexResolver.resolve(new String[] { "closed" });
+        indexResolver.resolve(new String[0]);
+        Assert.assertEquals(3, resolutions.get());
+
+        when(metaData.version()).thenReturn(2L);
+        indexResolver.resolve(new String[] { "logs-*" });
+        Assert.assertEquals(4, resolutions.get());
+
+        Assert.assertEquals(0, new ConcreteIndexResolver(null, clusterService).resolve(new String[] { "logs-*" }).length);
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.support.Base64Helper;
+
+public class DeserializedHeaderCacheTest {
+
+    @Test
+    public void testDeserializedOnce() {
+        final AtomicInteger extracted = new AtomicInteger();
+        final DeserializedHeaderCache<String> cache = new DeserializedHeaderCache<String>(2, value -> {
+            extracted.incrementAndGet();
+            return ((String) value).toUpperCase();
+        });
+
+        final String header = Base64Helper.serializeObject("user1");
+
+        Assert.assertNull(cache.get(null));
+        Assert.assertEquals("USER1", cache.get(header));
+        Assert.assertEquals("USER1", cache.get(new String(header)));
+        Assert.assertEquals(1, extracted.get());
+
+        Assert.assertEquals("USER2", cache.get(Base64Helper.serializeObject("user2")));
+        Assert.assertEquals(2, cache.size());
+
+        // full, starts over
+        Assert.assertEquals("USER3", cache.get(Base64Helper.serializeObject("user3")));
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals("USER1", cache.get(header));
+        Assert.assertEquals(4, extracted.get());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HeaderFilterTest {
+
+    @Test
+    public void testDefault() {
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("authorization", "Basic xyz");
+        headers.put("X-Opaque-Id", "123");
+
+        final Map<String, String> filtered = HeaderFilter.DEFAULT.filter(headers);
+        Assert.assertEquals(Collections.singletonMap("X-Opaque-Id", "123"), filtered);
+        Assert.assertNull(HeaderFilter.DEFAULT.filter(Collections.<String, String>emptyMap()));
+        Assert.assertTrue(HeaderFilter.DEFAULT.filter(Collections.singletonMap("Authorization", "Basic xyz")).isEmpty());
+    }
+
+    @Test
+    public void testAllowAndDeny() {
+        final HeaderFilter filter = new HeaderFilter(Arrays.asList("X-*", "Content-Type"), Arrays.asList("x-forwarded-*"));
+
+        Assert.assertTrue(filter.isAllowed("x-opaque-id"));
+        Assert.assertTrue(filter.isAllowed("content-type"));
+        Assert.assertTrue(filter.isAllowed("Content-Type"));
+        Assert.assertFalse(filter.isAllowed("X-Forwarded-For"));
+        Assert.assertFalse(filter.isAllowed("Accept"));
+        Assert.assertFalse(filter.isAllowed("AUTHORIZATION"));
+
+        final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        final List<String> value = Arrays.asList("application/json");
+        headers.put("Content-Type", value);
+        headers.put("Accept", Arrays.asList("*/*"));
+
+        final Map<String, List<String>> filtered = filter.filter(headers);
+        Assert.assertEquals(1, filtered.size());
+        // values are not copied
+        Assert.assertSame(value, filtered.get("Content-Type"));
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.bootstrap.HttpServer;
+import org.apache.http.impl.bootstrap.ServerBootstrap;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.floragunn.searchguard.support.ConfigConstants;
+
+public class HttpESAuditLogTest {
+
+    protected HttpServer server = null;
+
+    @Before
+    @After
+    public void tearDown() {
+        if(server != null) {
+            try {
+                server.stop();
+            } catch (Exception e) {
+                //ignore
+            }
+        }
+    }
+
+    @Test
+    public void testRetryFailedBulkItems() throws Exception {
+        final PartiallyFailingBulkHandler handler = new PartiallyFailingBulkHandler();
+
+        server = ServerBootstrap.bootstrap()
+                .setListenerPort(8090)
+                .setServerInfo("Test/1.1")
+                .registerHandler("*", handler)
+                .create();
+
+        server.start();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_HTTP_ENDPOINTS, "localhost:8090")
+                .put("searchguard.audit.config.bulk.enabled", true)
+                .put("searchguard.audit.config.bulk.max_actions", 3)
+                .put("searchguard.audit.config.bulk.flush_interval", "1h")
+                .put("searchguard.audit.config.bulk.retry_backoff", "10ms")
+                .build();
+
+        final HttpESAuditLog auditlog = new HttpESAuditLog(settings, null, null, null, null);
+
+        for (int i = 0; i < 3; i++) {
+            auditlog.store(MockAuditMessageFactory.validAuditMessage());
+        }
+
+        // the second item is rejected on the first attempt and retried alone
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (handler.bulkSizes.size() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        auditlog.close();
+
+        Assert.assertEquals(2, handler.requests.get());
+        Assert.assertEquals(3, (int) handler.bulkSizes.get(0));
+        Assert.assertEquals(1, (int) handler.bulkSizes.get(1));
+    }
+
+    @Test
+    public void testFailedBulkItemsAreDroppedAfterMaxRetries() throws Exception {
+        final PartiallyFailingBulkHandler handler = new PartiallyFailingBulkHandler();
+        handler.failures.set(Integer.MAX_VALUE);
+
+        server = ServerBootstrap.bootstrap()
+                .setListenerPort(8091)
+                .setServerInfo("Test/1.1")
+                .registerHandler("*", handler)
+                .create();
+
+        server.start();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_HTTP_ENDPOINTS, "localhost:8091")
+                .put("searchguard.audit.config.bulk.enabled", true)
+                .put("searchguard.audit.config.bulk.max_actions", 2)
+                .put("searchguard.audit.config.bulk.flush_interval", "1h")
+                .put("searchguard.audit.config.bulk.max_retries", 2)
+                .put("searchguard.audit.config.bulk.retry_backoff", "10ms")
+                .build();
+
+        final HttpESAuditLog auditlog = new HttpESAuditLog(settings, null, null, null, null);
+
+        for (int i = 0; i < 2; i++) {
+            auditlog.store(MockAuditMessageFactory.validAuditMessage());
+        }
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (handler.requests.get() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        // no further attempt after max_retries
+        Thread.sleep(200);
+        auditlog.close();
+
+        Assert.assertEquals(3, handler.requests.get());
+        Assert.assertEquals(2, (int) handler.bulkSizes.get(0));
+        Assert.assertEquals(1, (int) handler.bulkSizes.get(1));
+        Assert.assertEquals(1, (int) handler.bulkSizes.get(2));
+    }
+
+    @Test
+    public void testPendingRetryIsSentOnClose() throws Exception {
+        final PartiallyFailingBulkHandler handler = new PartiallyFailingBulkHandler();
+
+        server = ServerBootstrap.bootstrap()
+                .setListenerPort(8092)
+                .setServerInfo("Test/1.1")
+                .registerHandler("*", handler)
+                .create();
+
+        server.start();
+
+        final Settings settings = Settings.builder()
+                .putList(ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_HTTP_ENDPOINTS, "localhost:8092")
+                .put("searchguard.audit.config.bulk.enabled", true)
+                .put("searchguard.audit.config.bulk.max_actions", 3)
+                .put("searchguard.audit.config.bulk.flush_interval", "1h")
+                .put("searchguard.audit.config.bulk.retry_backoff", "1h")
+                .build();
+
+        final HttpESAuditLog auditlog = new HttpESAuditLog(settings, null, null, null, null);
+
+        for (int i = 0; i < 3; i++) {
+            auditlog.store(MockAuditMessageFactory.validAuditMessage());
+        }
+
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (auditlog.getPendingRetries() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        Assert.assertEquals(1, auditlog.getPendingRetries());
+        Assert.assertEquals(1, handler.requests.get());
+
+        // the retry is due in an hour, close() sends it right away
+        auditlog.close();
+
+        Assert.assertEquals(0, auditlog.getPendingRetries());
+        Assert.assertEquals(2, handler.requests.get());
+        Assert.assertEquals(3, (int) handler.bulkSizes.get(0));
+        Assert.assertEquals(1, (int) handler.bulkSizes.get(1));
+    }
+
+    /**
+     * Rejects the second item of a bulk request with a 429 as long as there are failures left, accepts all others.
+     */
+    static class PartiallyFailingBulkHandler implements HttpRequestHandler {
+
+        final AtomicInteger requests = new AtomicInteger();
+        final AtomicInteger failures = new AtomicInteger(1);
+        final List<Integer> bulkSizes = new ArrayList<Integer>();
+
+        @Override
+        public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+            final String body = EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity(), StandardCharsets.UTF_8);
+            // action and source line per item
+            final int size = body.split("\n").length / 2;
+            final StringBuilder items = new StringBuilder();
+            boolean errors = false;
+
+            for (int i = 0; i < size; i++) {
+                if (i > 0) {
+                    items.append(",");
+                }
+
+                if ((i == 1 || size == 1) && failures.getAndDecrement() > 0) {
+                    errors = true;
+                    items.append("{\"index\":{\"status\":429,\"error\":{\"type\":\"es_rejected_execution_exception\"}}}");
+                } else {
+                    items.append("{\"index\":{\"status\":201}}");
+                }
+            }
+
+            synchronized (bulkSizes) {
+                bulkSizes.add(size);
+            }
+            requests.incrementAndGet();
+
+            response.setStatusCode(200);
+            response.setEntity(new StringEntity("{\"took\":1,\"errors\":" + errors + ",\"items\":[" + items + "]}", ContentType.APPLICATION_JSON));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ *
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *
+ * This software is free of charge for non-commercial and academic use.
+ * For commercial use in a production environment you have to obtain a license
+ * from https://floragunn.com
+ *
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LocalNodeMetadataTest {
+
+    @Test
+    public void testCachedUntilNodesChanged() {
+        final DiscoveryNode first = node("node-1");
+        final DiscoveryNode second = node("node-2");
+        final ClusterService clusterService = mock(ClusterService.class);
+        when(clusterService.localNode()).thenReturn(first);
+
+        final LocalNodeMetadata.Cache cache = new LocalNodeMetadata.Cache(clusterService);
+        verify(clusterService).addListener(cache);
+
+        final LocalNodeMetadata metadata = cache.get();
+        Assert.assertEquals("node-1", metadata.name);
+        Assert.assertEquals("id-node-1", metadata.id);
+        Assert.assertEquals("host-node-1", metadata.hostName);
+        Assert.assertEquals("127.0.0.1", metadata.hostAddress);
+
+        when(clusterService.localNode()).thenReturn(second);
+        Assert.assertSame(metadata, cache.get());
+
+        final ClusterChangedEvent unchanged = mock(ClusterChangedEvent.class);
+        when(unchanged.nodesChanged()).thenReturn(false);
+        cache.clusterChanged(unchanged);
+        Assert.assertSame(metadata, cache.get());
+        verify(clusterService, times(1)).localNode();
+
+        final ClusterChangedEvent changed = mock(ClusterChangedEvent.class);
+        when(changed.nodesChanged()).thenReturn(true);
+        cache.clusterChanged(changed);
+        Assert.assertEquals("node-2", cache.get().name);
+        verify(clusterService, times(2)).localNode();
+
+        cache.close();
+        verify(clusterService).removeListener(cache);
+    }
+
+    private static DiscoveryNode node(final String name) {
+        final DiscoveryNode node = mock(DiscoveryNode.class);
+        when(node.getId()).thenReturn("id-" + name);
+        when(node.getName()).thenReturn(name);
+        when(node.getHostName()).thenReturn("host-" + name);
+        when(node.getHostAddress()).thenReturn("127.0.0.1");
+        return node;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MessageBatcherTest {
+
+    @Test
+    public void testFlushOnMaxActions() {
+        final CollectingHandler handler = new CollectingHandler(null);
+        final MessageBatcher<String> batcher = new MessageBatcher<String>("test", 3, 1000, 60000, handler);
+
+        for (int i = 0; i < 7; i++) {
+            batcher.add("msg" + i, 1);
+        }
+
+        Assert.assertEquals(2, handler.batches.size());
+        Assert.assertEquals(3, handler.batches.get(0).size());
+        Assert.assertEquals("msg3", handler.batches.get(1).get(0));
+
+        batcher.close();
+        Assert.assertEquals(3, handler.batches.size());
+        Assert.assertEquals(Collections.singletonList("msg6"), handler.batches.get(2));
+
+        batcher.add("msg7", 1);
+        Assert.assertEquals(3, handler.batches.size());
+    }
+
+    @Test
+    public void testFlushOnMaxBytes() {
+        final CollectingHandler handler = new CollectingHandler(null);
+        final MessageBatcher<String> batcher = new MessageBatcher<String>("test", 1000, 100, 60000, handler);
+
+        batcher.add("msg0", 60);
+        Assert.assertEquals(0, handler.batches.size());
+        batcher.add("msg1", 60);
+        Assert.assertEquals(1, handler.batches.size());
+        Assert.assertEquals(2, handler.batches.get(0).size());
+        batcher.close();
+    }
+
+    @Test
+    public void testFlushOnLinger() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final CollectingHandler handler = new CollectingHandler(latch);
+        final MessageBatcher<String> batcher = new MessageBatcher<String>("test", 1000, 1000, 50, handler);
+
+        batcher.add("msg0", 1);
+        batcher.add("msg1", 1);
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, handler.batches.size());
+        Assert.assertEquals(2, handler.batches.get(0).size());
+        batcher.close();
+        Assert.assertEquals(1, handler.batches.size());
+    }
+
+    private static class CollectingHandler implements MessageBatcher.BatchHandler<String> {
+
+        final List<List<String>> batches = Collections.synchronizedList(new ArrayList<List<String>>());
+        private final CountDownLatch latch;
+
+        CollectingHandler(final CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public void handle(List<String> batch) {
+            batches.add(batch);
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+    }
+}
@@ -32,6 +32,12 @@ public class MockWebhookAuditLog extends WebhookAuditLog {
 	}
 	
 	
+	@Override
+	int doPostBatch(String url, String payload) {
+		this.payload = payload;
+		return 200;
+	}
+	
 	@Override
 	boolean doGet(String url) {
 		this.url = url;
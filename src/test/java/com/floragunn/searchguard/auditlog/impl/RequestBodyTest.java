@@ -0,0 +1,60 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequestBodyTest {
+
+    private static final String BODY = "{\"query\":{\"match_all\":{}}}";
+
+    @Test
+    public void testUnlimited() {
+        Assert.assertEquals(BODY, RequestBody.of(XContentType.JSON, new BytesArray(BODY), -1).toString());
+        Assert.assertEquals(BODY, RequestBody.of(new BytesArray(BODY), -1).toString());
+        Assert.assertEquals(BODY, RequestBody.of(BODY, -1).toString());
+        Assert.assertEquals(BODY, RequestBody.of(new BytesArray(BODY), BODY.length()).toString());
+    }
+
+    @Test
+    public void testTruncated() {
+        final String expected = "{\"query\":" + RequestBody.TRUNCATED + BODY.length() + "]";
+
+        Assert.assertEquals(expected, RequestBody.of(XContentType.JSON, new BytesArray(BODY), 9).toString());
+        Assert.assertEquals(expected, RequestBody.of(new BytesArray(BODY), 9).toString());
+        Assert.assertEquals(expected, RequestBody.of(BODY, 9).toString());
+    }
+
+    @Test
+    public void testMultiByteCharsAreNotCut() {
+        // 'ü' is 2 bytes, '€' is 3 bytes in UTF-8
+        final String source = "aü€b";
+
+        Assert.assertEquals("aü" + RequestBody.TRUNCATED + 7 + "]", RequestBody.of(new BytesArray(source), 4).toString());
+        Assert.assertEquals("a" + RequestBody.TRUNCATED + 7 + "]", RequestBody.of(source, 2).toString());
+        Assert.assertEquals("aü€" + RequestBody.TRUNCATED + 7 + "]", RequestBody.of(source, 6).toString());
+    }
+
+    @Test
+    public void testAuditMessage() {
+        final AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+        msg.addBody(new Tuple<>(XContentType.JSON, new BytesArray(BODY)), 9);
+        Assert.assertEquals("{\"query\":" + RequestBody.TRUNCATED + BODY.length() + "]", msg.getAsMap().get(AuditMessage.REQUEST_BODY));
+    }
+}
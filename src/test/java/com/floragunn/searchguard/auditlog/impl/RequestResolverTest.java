@@ -0,0 +1,62 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RequestResolverTest {
+
+    @Test
+    public void testRegisterExtractor() {
+        Assert.assertSame(RequestResolver.extractorFor(Object.class), RequestResolver.extractorFor(CustomRequest.class));
+
+        RequestResolver.registerExtractor(CustomRequest.class, (request, msg, context) -> msg.addId(request.id));
+        RequestResolver.registerExtractor(Marker.class, (request, msg, context) -> msg.addId("marker"));
+
+        // subclasses use the extractor of the closest registered superclass before any interface
+        Assert.assertEquals("id1", extractId(new SpecialCustomRequest("id1")));
+        Assert.assertEquals("id2", extractId(new CustomRequest("id2")));
+        Assert.assertEquals("marker", extractId(new Marker() {
+        }));
+
+        RequestResolver.registerExtractor(SpecialCustomRequest.class, (request, msg, context) -> msg.addId("special"));
+        Assert.assertEquals("special", extractId(new SpecialCustomRequest("id1")));
+        Assert.assertEquals("id2", extractId(new CustomRequest("id2")));
+    }
+
+    private static String extractId(final Object request) {
+        final AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+        RequestResolver.extractorFor(request.getClass()).extract(request, msg, null);
+        return (String) msg.getAsMap().get(AuditMessage.ID);
+    }
+
+    private interface Marker {
+    }
+
+    private static class CustomRequest implements Marker {
+        final String id;
+
+        CustomRequest(final String id) {
+            this.id = id;
+        }
+    }
+
+    private static class SpecialCustomRequest extends CustomRequest {
+        SpecialCustomRequest(final String id) {
+            super(id);
+        }
+    }
+}
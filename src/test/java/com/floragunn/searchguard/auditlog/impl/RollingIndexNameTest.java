@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RollingIndexNameTest {
+
+    // 2017-06-01T12:34:56.000Z, a thursday
+    private static final long NOW = new DateTime(2017, 6, 1, 12, 34, 56, DateTimeZone.UTC).getMillis();
+
+    @Test
+    public void testDaily() {
+        final RollingIndexName indexName = RollingIndexName.forPattern("'sg6-auditlog-'YYYY.MM.dd");
+        Assert.assertSame(indexName, RollingIndexName.forPattern("'sg6-auditlog-'YYYY.MM.dd"));
+
+        Assert.assertEquals("sg6-auditlog-2017.06.01", indexName.get(NOW));
+        Assert.assertSame(indexName.get(NOW), indexName.get(NOW + 3600 * 1000));
+        Assert.assertEquals(utc(2017, 6, 2, 0), indexName.nextRollover(NOW));
+        Assert.assertEquals("sg6-auditlog-2017.06.02", indexName.get(utc(2017, 6, 2, 0)));
+        // clock went backwards
+        Assert.assertEquals("sg6-auditlog-2017.06.01", indexName.get(NOW));
+    }
+
+    @Test
+    public void testRollover() {
+        Assert.assertEquals(utc(2017, 6, 1, 13), RollingIndexName.forPattern("'idx-'YYYY.MM.dd.HH").nextRollover(NOW));
+        Assert.assertEquals(utc(2017, 6, 5, 0), RollingIndexName.forPattern("'idx-'xxxx.ww").nextRollover(NOW));
+        Assert.assertEquals(utc(2017, 7, 1, 0), RollingIndexName.forPattern("'idx-'YYYY.MM").nextRollover(NOW));
+        // the year rolls over before the week
+        Assert.assertEquals(utc(2018, 1, 1, 0), RollingIndexName.forPattern("'idx-'YYYY.ww").nextRollover(utc(2017, 12, 30, 0)));
+        // quoted letters are ignored
+        Assert.assertEquals(utc(2017, 6, 2, 0), RollingIndexName.forPattern("'my-hourly-index-'YYYY.MM.dd").nextRollover(NOW));
+    }
+
+    @Test
+    public void testNotCacheable() {
+        final RollingIndexName indexName = RollingIndexName.forPattern("'idx-'YYYY.MM.dd.HH.mm");
+        Assert.assertEquals("idx-2017.06.01.12.34", indexName.get(NOW));
+        Assert.assertEquals("idx-2017.06.01.12.35", indexName.get(NOW + 60 * 1000));
+    }
+
+    private static long utc(final int year, final int month, final int day, final int hour) {
+        return new DateTime(year, month, day, hour, 0, DateTimeZone.UTC).getMillis();
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.auditlog.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.auditlog.impl.AuditMessage.Category;
+import com.floragunn.searchguard.auditlog.impl.SamplingPolicy.Rule;
+import com.floragunn.searchguard.auditlog.impl.SamplingPolicy.TokenBucket;
+
+public class SamplingPolicyTest {
+
+    private static final List<String> ALL = Collections.emptyList();
+
+    @Test
+    public void testOneInN() {
+        final Rule rule = new Rule("reads", EnumSet.of(Category.GRANTED_PRIVILEGES), Arrays.asList("indices:data/read/*"), ALL, 1d, 10, null);
+        final SamplingPolicy policy = new SamplingPolicy(Arrays.asList(rule));
+
+        int kept = 0;
+        for (int i = 0; i < 100; i++) {
+            final double samplingRate = policy.sample(Category.GRANTED_PRIVILEGES, "indices:data/read/search", "admin");
+            if (samplingRate != SamplingPolicy.NOT_AUDITED) {
+                Assert.assertEquals(0.1d, samplingRate, 0d);
+                kept++;
+            }
+        }
+
+        Assert.assertEquals(10, kept);
+        Assert.assertEquals(100, rule.getSeen());
+        Assert.assertEquals(90, rule.getSampledOut());
+        Assert.assertEquals(0, rule.getRateLimited());
+
+        // not matched by the rule
+        Assert.assertEquals(SamplingPolicy.NOT_SAMPLED, policy.sample(Category.GRANTED_PRIVILEGES, "indices:data/write/index", "admin"), 0d);
+        Assert.assertEquals(SamplingPolicy.NOT_SAMPLED, policy.sample(Category.AUTHENTICATED, "indices:data/read/search", "admin"), 0d);
+        Assert.assertEquals(100, rule.getSeen());
+    }
+
+    @Test
+    public void testFixedRate() {
+        final Rule none = new Rule("none", EnumSet.noneOf(Category.class), ALL, Arrays.asList("bot*"), 0d, 1, null);
+        final Rule half = new Rule("half", EnumSet.of(Category.AUTHENTICATED), ALL, ALL, 0.5d, 1, null);
+        final SamplingPolicy policy = new SamplingPolicy(Arrays.asList(none, half));
+
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertEquals(SamplingPolicy.NOT_AUDITED, policy.sample(Category.AUTHENTICATED, null, "bot1"), 0d);
+            final double samplingRate = policy.sample(Category.AUTHENTICATED, null, "admin");
+            Assert.assertTrue(samplingRate == SamplingPolicy.NOT_AUDITED || samplingRate == 0.5d);
+        }
+
+        Assert.assertEquals(1000, none.getSampledOut());
+        Assert.assertTrue(half.getSampledOut() > 300 && half.getSampledOut() < 700);
+    }
+
+    @Test
+    public void testRateLimit() {
+        final Rule rule = new Rule("limited", EnumSet.of(Category.AUTHENTICATED), ALL, ALL, 1d, 1, new TokenBucket(0.001d, 3));
+        final SamplingPolicy policy = new SamplingPolicy(Arrays.asList(rule));
+
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(SamplingPolicy.NOT_SAMPLED, policy.sample(Category.AUTHENTICATED, null, "admin"), 0d);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(SamplingPolicy.NOT_AUDITED, policy.sample(Category.AUTHENTICATED, null, "admin"), 0d);
+        }
+
+        Assert.assertEquals(5, rule.getRateLimited());
+        Assert.assertEquals(0, rule.getSampledOut());
+    }
+
+    @Test
+    public void testRateLimitedEventsReportEffectiveRate() throws Exception {
+        // one permit every 10ms
+        final Rule rule = new Rule("limited", EnumSet.of(Category.AUTHENTICATED), ALL, ALL, 1d, 4, new TokenBucket(100d, 1));
+        final SamplingPolicy policy = new SamplingPolicy(Arrays.asList(rule));
+
+        Assert.assertEquals(0.25d, policy.sample(Category.AUTHENTICATED, null, "admin"), 0d);
+
+        for (int i = 0; i < 39; i++) {
+            policy.sample(Category.AUTHENTICATED, null, "admin");
+        }
+
+        Assert.assertTrue(rule.getRateLimited() > 0);
+        Thread.sleep(20);
+
+        // reduced while the bucket rejected events within the current second
+        final double samplingRate = nextKept(policy, rule);
+        Assert.assertTrue(samplingRate > 0d);
+        Assert.assertTrue(samplingRate < 0.25d);
+
+        // back to the configured rate once the bucket stops rejecting
+        Thread.sleep(1100);
+        Assert.assertEquals(0.25d, nextKept(policy, rule), 0d);
+        Thread.sleep(20);
+        Assert.assertEquals(0.25d, nextKept(policy, rule), 0d);
+    }
+
+    @Test
+    public void testTokenBucketAdmittedShare() {
+        final TokenBucket bucket = new TokenBucket(10d, 2);
+        final long start = System.nanoTime();
+
+        Assert.assertEquals(1d, bucket.acquire(start), 0d);
+        Assert.assertEquals(1d, bucket.acquire(start), 0d);
+        Assert.assertEquals(0d, bucket.acquire(start), 0d);
+        Assert.assertEquals(0d, bucket.acquire(start), 0d);
+        // 3 of 5 requests in this second got a permit
+        Assert.assertEquals(0.6d, bucket.acquire(start + TimeUnit.MILLISECONDS.toNanos(100)), 0.000001d);
+        // the rejections of the previous second do not count anymore
+        Assert.assertEquals(1d, bucket.acquire(start + TimeUnit.SECONDS.toNanos(2)), 0d);
+    }
+
+    // skips the sampled out events
+    private static double nextKept(final SamplingPolicy policy, final Rule rule) {
+        final long limit = rule.getSeen() + 100;
+        double samplingRate;
+        while ((samplingRate = policy.sample(Category.AUTHENTICATED, null, "admin")) == SamplingPolicy.NOT_AUDITED) {
+            Assert.assertTrue(rule.getSeen() < limit);
+        }
+        return samplingRate;
+    }
+
+    @Test
+    public void testTokenBucketRefill() {
+        final TokenBucket bucket = new TokenBucket(10d, 2);
+        final long start = System.nanoTime();
+
+        Assert.assertTrue(bucket.tryAcquire(start));
+        Assert.assertTrue(bucket.tryAcquire(start));
+        Assert.assertFalse(bucket.tryAcquire(start));
+        // 10 permits per second
+        Assert.assertTrue(bucket.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(100)));
+        Assert.assertFalse(bucket.tryAcquire(start + TimeUnit.MILLISECONDS.toNanos(150)));
+        // never more than the burst
+        Assert.assertTrue(bucket.tryAcquire(start + TimeUnit.SECONDS.toNanos(10)));
+        Assert.assertTrue(bucket.tryAcquire(start + TimeUnit.SECONDS.toNanos(10)));
+        Assert.assertFalse(bucket.tryAcquire(start + TimeUnit.SECONDS.toNanos(10)));
+    }
+}
@@ -21,6 +21,9 @@ import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.KeyManagerFactory;
@@ -72,6 +75,187 @@ public class WebhookAuditLogTest {
 
 	}
 
+	@Test
+	public void connectionPoolTest() throws Exception {
+		Settings settings = Settings.builder()
+				.put("searchguard.audit.config.webhook.url", "http://localhost")
+				.put("searchguard.audit.config.webhook.max_connections", 30)
+				.put("searchguard.audit.config.webhook.max_connections_per_route", 15)
+				.put("path.home", ".")
+                .put("searchguard.ssl.transport.truststore_filepath",
+                        FileHelper.getAbsoluteFilePathFromClassPath("truststore.jks"))
+				.build();
+		MockWebhookAuditLog auditlog = new MockWebhookAuditLog(settings);
+		Assert.assertNotNull(auditlog.getPoolStats());
+		Assert.assertEquals(30, auditlog.getPoolStats().getMax());
+		Assert.assertEquals(0, auditlog.getPoolStats().getLeased());
+		auditlog.close();
+	}
+
+	@Test
+	public void batchedFormatsTest() throws Exception {
+		AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+
+		Settings settings = Settings.builder()
+				.put("searchguard.audit.config.webhook.url", "http://localhost")
+				.put("searchguard.audit.config.webhook.format", "json_array")
+				.put("searchguard.audit.config.webhook.batch.max_messages", 2)
+				.put("searchguard.audit.config.webhook.batch.linger", "1h")
+				.put("path.home", ".")
+                .put("searchguard.ssl.transport.truststore_filepath",
+                        FileHelper.getAbsoluteFilePathFromClassPath("truststore.jks"))
+				.build();
+		MockWebhookAuditLog auditlog = new MockWebhookAuditLog(settings);
+		auditlog.store(msg);
+		Assert.assertNull(auditlog.payload);
+		auditlog.store(msg);
+		Assert.assertEquals(WebhookFormat.JSON_ARRAY, auditlog.webhookFormat);
+		Assert.assertEquals(ContentType.APPLICATION_JSON, auditlog.webhookFormat.getContentType());
+		Assert.assertEquals("[" + msg.toJson() + "," + msg.toJson() + "]", auditlog.payload);
+		auditlog.store(msg);
+		auditlog.close();
+		Assert.assertEquals("[" + msg.toJson() + "]", auditlog.payload);
+
+		settings = Settings.builder()
+				.put("searchguard.audit.config.webhook.url", "http://localhost")
+				.put("searchguard.audit.config.webhook.format", "ndjson")
+				.put("searchguard.audit.config.webhook.batch.max_messages", 4)
+				.put("searchguard.audit.config.webhook.batch.max_retries", 0)
+				.put("searchguard.audit.config.webhook.batch.linger", "1h")
+				.put("path.home", ".")
+                .put("searchguard.ssl.transport.truststore_filepath",
+                        FileHelper.getAbsoluteFilePathFromClassPath("truststore.jks"))
+				.build();
+		final List<String> payloads = new ArrayList<>();
+		auditlog = new MockWebhookAuditLog(settings) {
+			@Override
+			int doPostBatch(String url, String payload) {
+				payloads.add(payload);
+				// reject everything but single messages
+				return payload.indexOf('\n') == payload.length() - 1 ? 200 : 400;
+			}
+		};
+		for (int i = 0; i < 4; i++) {
+			auditlog.store(msg);
+		}
+		auditlog.close();
+		// 4 -> 1 + 1 + 1 + 1
+		Assert.assertEquals(5, payloads.size());
+		Assert.assertEquals(msg.toJson() + "\n", payloads.get(4));
+	}
+
+	@Test
+	public void batchRetryTest() throws Exception {
+		AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+
+		Settings settings = Settings.builder()
+				.put("searchguard.audit.config.webhook.url", "http://localhost")
+				.put("searchguard.audit.config.webhook.format", "ndjson")
+				.put("searchguard.audit.config.webhook.batch.max_messages", 2)
+				.put("searchguard.audit.config.webhook.batch.max_retries", 2)
+				.put("searchguard.audit.config.webhook.batch.linger", "1h")
+				.put("path.home", ".")
+                .put("searchguard.ssl.transport.truststore_filepath",
+                        FileHelper.getAbsoluteFilePathFromClassPath("truststore.jks"))
+				.build();
+		final List<String> payloads = Collections.synchronizedList(new ArrayList<String>());
+		MockWebhookAuditLog auditlog = new MockWebhookAuditLog(settings) {
+			@Override
+			int doPostBatch(String url, String payload) {
+				payloads.add(payload);
+				// unavailable on the first attempt
+				return payloads.size() == 1 ? 503 : 200;
+			}
+		};
+		auditlog.store(msg);
+		auditlog.store(msg);
+		// the retry is scheduled, the storing thread does not wait for it
+		Assert.assertEquals(1, payloads.size());
+
+		final long deadline = System.currentTimeMillis() + 10000;
+		while (payloads.size() < 2 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+
+		auditlog.close();
+		Assert.assertEquals(2, payloads.size());
+		Assert.assertEquals(payloads.get(0), payloads.get(1));
+	}
+
+	@Test
+	public void batchMaxSizeInBytesTest() throws Exception {
+		AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+
+		Settings settings = Settings.builder()
+				.put("searchguard.audit.config.webhook.url", "http://localhost")
+				.put("searchguard.audit.config.webhook.format", "ndjson")
+				.put("searchguard.audit.config.webhook.batch.max_messages", 10)
+				.put("searchguard.audit.config.webhook.batch.max_size", "200b")
+				.put("searchguard.audit.config.webhook.batch.linger", "1h")
+				.put("path.home", ".")
+                .put("searchguard.ssl.transport.truststore_filepath",
+                        FileHelper.getAbsoluteFilePathFromClassPath("truststore.jks"))
+				.build();
+		final List<String> payloads = Collections.synchronizedList(new ArrayList<String>());
+		MockWebhookAuditLog auditlog = new MockWebhookAuditLog(settings) {
+			@Override
+			protected String formatJson(AuditMessage msg) {
+				// 60 chars, but 120 bytes in UTF-8
+				final StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < 60; i++) {
+					sb.append('\u00e4');
+				}
+				return sb.toString();
+			}
+
+			@Override
+			int doPostBatch(String url, String payload) {
+				payloads.add(payload);
+				return 200;
+			}
+		};
+		auditlog.store(msg);
+		Assert.assertEquals(0, payloads.size());
+		// 240 bytes exceed max_size although the payloads have only 120 chars
+		auditlog.store(msg);
+		Assert.assertEquals(1, payloads.size());
+		auditlog.close();
+	}
+
+	@Test
+	public void batchRetryOnCloseTest() throws Exception {
+		AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+
+		Settings settings = Settings.builder()
+				.put("searchguard.audit.config.webhook.url", "http://localhost")
+				.put("searchguard.audit.config.webhook.format", "ndjson")
+				.put("searchguard.audit.config.webhook.batch.max_messages", 10)
+				.put("searchguard.audit.config.webhook.batch.max_retries", 2)
+				.put("searchguard.audit.config.webhook.batch.linger", "1h")
+				.put("path.home", ".")
+                .put("searchguard.ssl.transport.truststore_filepath",
+                        FileHelper.getAbsoluteFilePathFromClassPath("truststore.jks"))
+				.build();
+		final List<String> payloads = Collections.synchronizedList(new ArrayList<String>());
+		MockWebhookAuditLog auditlog = new MockWebhookAuditLog(settings) {
+			@Override
+			int doPostBatch(String url, String payload) {
+				payloads.add(payload);
+				// the final flush on close fails
+				return payloads.size() == 1 ? 503 : 200;
+			}
+		};
+		auditlog.store(msg);
+		auditlog.store(msg);
+		Assert.assertEquals(0, payloads.size());
+
+		// the retry of the final flush is posted by close() instead of being cancelled
+		auditlog.close();
+		Assert.assertEquals(2, payloads.size());
+		Assert.assertEquals(payloads.get(0), payloads.get(1));
+		Assert.assertEquals(0, auditlog.getPendingRetries());
+	}
+
 	@SuppressWarnings("resource")
 	@Test
 	public void formatsTest() throws Exception {
@@ -14,6 +14,8 @@
 
 package com.floragunn.searchguard.dlic.auditlog;
 
+import java.util.Map;
+
 import org.apache.http.Header;
 import org.apache.http.HttpStatus;
 import org.apache.http.NoHttpResponseException;
@@ -402,6 +404,61 @@ public class BasicAuditlogTest extends AbstractAuditlogiUnitTest {
         Assert.assertTrue(TestAuditlogImpl.messages.size() >= 17); 
     }
     
+    @Test
+    public void testAggregatedBulk() throws Exception {
+
+        Settings additionalSettings = Settings.builder()
+                .put("searchguard.audit.type", TestAuditlogImpl.class.getName())
+                .put(ConfigConstants.SEARCHGUARD_AUDIT_ENABLE_TRANSPORT, true)
+                .put(ConfigConstants.SEARCHGUARD_AUDIT_RESOLVE_BULK_REQUESTS, true)
+                .put("searchguard.audit.config.bulk_requests.aggregate", true)
+                .put("searchguard.audit.config.bulk_requests.max_items", 2)
+                .put("searchguard.audit.config.bulk_requests.source_digests", true)
+                .put(ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_DISABLED_TRANSPORT_CATEGORIES, "NONE")
+                .put(ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_DISABLED_REST_CATEGORIES, "NONE")
+                .put("searchguard.audit.threadpool.size", 0)
+                .build();
+        
+        setup(additionalSettings);
+        
+        try (TransportClient tc = getInternalTransportClient()) {
+            tc.admin().indices().create(new CreateIndexRequest("aggregated")).actionGet();
+        }
+        
+        TestAuditlogImpl.clear();
+        
+        String bulkBody = 
+                "{ \"index\" : { \"_index\" : \"aggregated\", \"_type\" : \"type1\", \"_id\" : \"1\" } }"+System.lineSeparator()+
+                "{ \"field1\" : \"value1\" }" +System.lineSeparator()+
+                "{ \"index\" : { \"_index\" : \"aggregated\", \"_type\" : \"type1\", \"_id\" : \"1\" } }"+System.lineSeparator()+
+                "{ \"field1\" : \"value1\" }" +System.lineSeparator()+
+                "{ \"delete\" : { \"_index\" : \"aggregated\", \"_type\" : \"type1\", \"_id\" : \"1\" } }"+System.lineSeparator();
+        
+        HttpResponse response = rh.executePostRequest("_bulk?routing=a", bulkBody, encodeBasicHeader("admin", "admin"));
+        System.out.println(TestAuditlogImpl.sb.toString());
+        Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        
+        int shardMessages = 0;
+        for (AuditMessage msg : TestAuditlogImpl.messages) {
+            // primary and replica shard requests, but not one message per item
+            if ("BulkShardRequest".equals(msg.getRequestType())) {
+                shardMessages++;
+                final Map<String, Object> fields = msg.getAsMap();
+                Assert.assertEquals(3, fields.get(AuditMessage.BULK_ITEM_COUNT));
+                Assert.assertArrayEquals(new String[] { "1", "1" }, (String[]) fields.get(AuditMessage.IDS));
+                Assert.assertArrayEquals(new String[] { "index", "index" }, (String[]) fields.get(AuditMessage.OP_TYPES));
+                Assert.assertFalse(fields.containsKey(AuditMessage.REQUEST_BODY));
+                final String[] digests = (String[]) fields.get(AuditMessage.SOURCE_DIGESTS);
+                Assert.assertEquals(2, digests.length);
+                Assert.assertEquals(64, digests[0].length());
+                Assert.assertEquals(digests[0], digests[1]);
+            }
+            Assert.assertNotEquals("IndexRequest", msg.getRequestType());
+        }
+        
+        Assert.assertTrue(shardMessages > 0);
+    }
+    
     public void testBulkNonAuth() throws Exception {
 
         String bulkBody = 
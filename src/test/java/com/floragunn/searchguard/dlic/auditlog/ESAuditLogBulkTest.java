@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016-2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.dlic.auditlog;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.http.Header;
+import org.apache.http.HttpStatus;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.client.FilterClient;
+import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.floragunn.searchguard.auditlog.impl.AuditMessage;
+import com.floragunn.searchguard.auditlog.impl.ESAuditLog;
+import com.floragunn.searchguard.auditlog.impl.MockAuditMessageFactory;
+import com.floragunn.searchguard.support.ConfigConstants;
+import com.floragunn.searchguard.test.helper.rest.RestHelper.HttpResponse;
+
+public class ESAuditLogBulkTest extends AbstractAuditlogiUnitTest {
+
+    @Test
+    public void testFlushFromGenericPool() throws Exception {
+
+        setup(Settings.EMPTY);
+
+        try (TransportClient tc = getInternalTransportClient()) {
+            final RecordingClient client = new RecordingClient(tc);
+            final Settings settings = Settings.builder()
+                    .put("searchguard.audit.config.bulk.enabled", true)
+                    .put("searchguard.audit.config.bulk.flush_interval", "200ms")
+                    .put("searchguard.audit.config.bulk.refresh_policy", "wait_for")
+                    .build();
+
+            final ESAuditLog auditlog = new ESAuditLog(settings, null, client, tc.threadPool(), "'sgbulkflush'", "auditlog", null, null);
+
+            for (int i = 0; i < 5; i++) {
+                auditlog.store(MockAuditMessageFactory.validAuditMessage());
+            }
+
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (client.actions() < 5 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+
+            Assert.assertEquals(5, client.actions());
+
+            for (final BulkRecord bulk : client.bulks()) {
+                // flushed by the scheduled task, not by store()
+                Assert.assertTrue(bulk.thread, bulk.thread.contains("generic"));
+                Assert.assertEquals("true", bulk.confRequestHeader);
+                Assert.assertEquals(RefreshPolicy.WAIT_UNTIL, bulk.refreshPolicy);
+                Assert.assertFalse(bulk.hasFailures);
+            }
+
+            auditlog.close();
+            Assert.assertEquals(5, tc.prepareSearch("sgbulkflush").setSize(0).get().getHits().getTotalHits());
+        }
+    }
+
+    @Test
+    public void testCloseDrainsPendingItems() throws Exception {
+
+        setup(Settings.EMPTY);
+
+        try (TransportClient tc = getInternalTransportClient()) {
+            final RecordingClient client = new RecordingClient(tc);
+            final Settings settings = Settings.builder()
+                    .put("searchguard.audit.config.bulk.enabled", true)
+                    .put("searchguard.audit.config.bulk.flush_interval", "1h")
+                    .put("searchguard.audit.config.bulk.refresh_policy", "true")
+                    .build();
+
+            final ESAuditLog auditlog = new ESAuditLog(settings, null, client, tc.threadPool(), "'sgbulkclose'", "auditlog", null, null);
+
+            for (int i = 0; i < 3; i++) {
+                auditlog.store(MockAuditMessageFactory.validAuditMessage());
+            }
+
+            // neither max_actions nor the flush interval reached
+            Thread.sleep(500);
+            Assert.assertEquals(0, client.bulks().size());
+
+            auditlog.close();
+
+            Assert.assertEquals(1, client.bulks().size());
+            final BulkRecord bulk = client.bulks().get(0);
+            Assert.assertEquals(3, bulk.actions);
+            Assert.assertEquals("true", bulk.confRequestHeader);
+            Assert.assertEquals(RefreshPolicy.IMMEDIATE, bulk.refreshPolicy);
+            Assert.assertEquals(3, tc.prepareSearch("sgbulkclose").setSize(0).get().getHits().getTotalHits());
+        }
+    }
+
+    @Test
+    public void testFailedBulkItems() throws Exception {
+
+        setup(Settings.EMPTY);
+
+        try (TransportClient tc = getInternalTransportClient()) {
+            final RecordingClient client = new RecordingClient(tc);
+            final Settings settings = Settings.builder()
+                    .put("searchguard.audit.config.bulk.enabled", true)
+                    .put("searchguard.audit.config.bulk.max_actions", 2)
+                    .put("searchguard.audit.config.bulk.flush_interval", "1h")
+                    .build();
+
+            // index names must not start with an underscore, so every item fails
+            final ESAuditLog auditlog = new ESAuditLog(settings, null, client, tc.threadPool(), "'_sgbulkinvalid'", "auditlog", null, null);
+
+            final AuditMessage msg = MockAuditMessageFactory.validAuditMessage();
+            auditlog.store(msg);
+            auditlog.store(msg);
+            // the failures are only logged, the bulk processor accepts further messages
+            auditlog.store(msg);
+            auditlog.close();
+
+            Assert.assertEquals(2, client.bulks().size());
+            Assert.assertEquals(2, client.bulks().get(0).actions);
+            Assert.assertEquals(1, client.bulks().get(1).actions);
+            Assert.assertTrue(client.bulks().get(0).hasFailures);
+            Assert.assertTrue(client.bulks().get(1).hasFailures);
+            Assert.assertEquals(RefreshPolicy.NONE, client.bulks().get(0).refreshPolicy);
+        }
+    }
+
+    @Test
+    public void testAuditDocumentsAreNotAudited() throws Exception {
+
+        Settings additionalSettings = Settings.builder()
+                .put("searchguard.audit.type", "internal_elasticsearch")
+                .put("searchguard.audit.config.index", "'sgbulkauditlog'")
+                .put("searchguard.audit.config.bulk.enabled", true)
+                .put("searchguard.audit.config.bulk.flush_interval", "200ms")
+                .put("searchguard.audit.config.bulk.refresh_policy", "true")
+                .put(ConfigConstants.SEARCHGUARD_AUDIT_ENABLE_TRANSPORT, true)
+                .put(ConfigConstants.SEARCHGUARD_AUDIT_RESOLVE_INDICES, true)
+                .put(ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_DISABLED_TRANSPORT_CATEGORIES, "NONE")
+                .put(ConfigConstants.SEARCHGUARD_AUDIT_CONFIG_DISABLED_REST_CATEGORIES, "NONE")
+                .put("searchguard.audit.threadpool.size", 10) //must be greater 0
+                .build();
+
+        setup(additionalSettings);
+        setupStarfleetIndex();
+
+        HttpResponse response = rh.executeGetRequest("sf/_search", encodeBasicHeader("admin", "admin"));
+        Assert.assertEquals(HttpStatus.SC_OK, response.getStatusCode());
+        Thread.sleep(2000);
+
+        final boolean sendHTTPClientCertificate = rh.sendHTTPClientCertificate;
+        final String keystore = rh.keystore;
+        rh.sendHTTPClientCertificate = true;
+        rh.keystore = "kirk-keystore.jks";
+        final HttpResponse all = rh.executeGetRequest("sgbulkauditlog/_search?size=0", new Header[0]);
+        final HttpResponse self = rh.executeGetRequest("sgbulkauditlog/_search?size=0&q=" + AuditMessage.INDICES + ":sgbulkauditlog", new Header[0]);
+        rh.sendHTTPClientCertificate = sendHTTPClientCertificate;
+        rh.keystore = keystore;
+
+        Assert.assertEquals(HttpStatus.SC_OK, all.getStatusCode());
+        Assert.assertFalse(all.getBody(), all.getBody().contains("\"hits\":{\"total\":0"));
+        Assert.assertEquals(HttpStatus.SC_OK, self.getStatusCode());
+        Assert.assertTrue(self.getBody(), self.getBody().contains("\"hits\":{\"total\":0"));
+    }
+
+    static class BulkRecord {
+        final int actions;
+        final RefreshPolicy refreshPolicy;
+        final String confRequestHeader;
+        final String thread;
+        volatile boolean hasFailures;
+
+        BulkRecord(final int actions, final RefreshPolicy refreshPolicy, final String confRequestHeader, final String thread) {
+            this.actions = actions;
+            this.refreshPolicy = refreshPolicy;
+            this.confRequestHeader = confRequestHeader;
+            this.thread = thread;
+        }
+    }
+
+    /**
+     * Records the bulk requests of the audit log together with the context they were sent with.
+     */
+    static class RecordingClient extends FilterClient {
+
+        private final List<BulkRecord> bulks = new ArrayList<BulkRecord>();
+
+        RecordingClient(final Client in) {
+            super(in);
+        }
+
+        synchronized List<BulkRecord> bulks() {
+            return new ArrayList<BulkRecord>(bulks);
+        }
+
+        synchronized int actions() {
+            int actions = 0;
+            for (final BulkRecord bulk : bulks) {
+                actions += bulk.actions;
+            }
+            return actions;
+        }
+
+        @Override
+        protected <Request extends ActionRequest, Response extends ActionResponse, RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+                Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+
+            if (!(request instanceof BulkRequest)) {
+                super.doExecute(action, request, listener);
+                return;
+            }
+
+            final BulkRequest bulkRequest = (BulkRequest) request;
+            final BulkRecord bulk = new BulkRecord(bulkRequest.numberOfActions(), bulkRequest.getRefreshPolicy(),
+                    threadPool().getThreadContext().getHeader(ConfigConstants.SG_CONF_REQUEST_HEADER), Thread.currentThread().getName());
+
+            synchronized (this) {
+                bulks.add(bulk);
+            }
+
+            super.doExecute(action, request, new ActionListener<Response>() {
+
+                @Override
+                public void onResponse(Response response) {
+                    bulk.hasFailures = ((BulkResponse) response).hasFailures();
+                    listener.onResponse(response);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    bulk.hasFailures = true;
+                    listener.onFailure(e);
+                }
+            });
+        }
+    }
+}
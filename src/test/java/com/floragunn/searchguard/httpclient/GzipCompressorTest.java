@@ -0,0 +1,115 @@
+/*
+ * Copyright 2017 by floragunn GmbH - All rights reserved
+ * 
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed here is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * 
+ * This software is free of charge for non-commercial and academic use. 
+ * For commercial use in a production environment you have to obtain a license 
+ * from https://floragunn.com
+ * 
+ */
+
+package com.floragunn.searchguard.httpclient;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GzipCompressorTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final GzipCompressor compressor = new GzipCompressor(6, 1024);
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            sb.append("{\"audit_category\":\"GRANTED_PRIVILEGES\",\"audit_request_body\":\"").append(i).append("\"}\n");
+        }
+        final byte[] input = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        Assert.assertTrue(compressor.shouldCompress(input.length));
+        Assert.assertFalse(compressor.shouldCompress(1023));
+
+        final byte[] compressed = compressor.compress(input);
+        Assert.assertTrue(compressed.length < input.length / 4);
+        Assert.assertArrayEquals(input, gunzip(compressed));
+
+        // the pooled deflater is reset between two calls
+        Assert.assertArrayEquals(new byte[0], gunzip(compressor.compress(new byte[0])));
+        Assert.assertArrayEquals(input, gunzip(compressor.compress(input)));
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        final GzipCompressor compressor = new GzipCompressor(1, 0);
+        final AtomicInteger failures = new AtomicInteger();
+        final List<Thread> threads = new ArrayList<Thread>();
+
+        for (int t = 0; t < 4; t++) {
+            final int threadNum = t;
+            final Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 500; i++) {
+                        final byte[] input = ("thread " + threadNum + " message " + i).getBytes(StandardCharsets.UTF_8);
+                        try {
+                            if (!new String(gunzip(compressor.compress(input)), StandardCharsets.UTF_8)
+                                    .equals(new String(input, StandardCharsets.UTF_8))) {
+                                failures.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assert.assertEquals(0, failures.get());
+    }
+
+    @Test
+    public void testCompressAfterClose() throws Exception {
+        final GzipCompressor compressor = new GzipCompressor(6, 0);
+        final byte[] input = "{\"audit_category\":\"GRANTED_PRIVILEGES\"}".getBytes(StandardCharsets.UTF_8);
+        Assert.assertArrayEquals(input, gunzip(compressor.compress(input)));
+
+        compressor.close();
+        // late requests still get a deflater which is ended right away
+        Assert.assertArrayEquals(input, gunzip(compressor.compress(input)));
+        compressor.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLevel() {
+        new GzipCompressor(10, 0);
+    }
+
+    private static byte[] gunzip(final byte[] compressed) throws IOException {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+}
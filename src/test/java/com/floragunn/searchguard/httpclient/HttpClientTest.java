@@ -14,6 +14,14 @@
 
 package com.floragunn.searchguard.httpclient;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.settings.Settings;
 import org.junit.Assert;
 import org.junit.Test;
@@ -65,6 +73,67 @@ public class HttpClientTest extends SingleClusterTest {
         
     }
     
+    @Test
+    public void testBulk() throws Exception {
+        
+        final Settings settings = Settings.builder()
+                .put("searchguard.ssl.http.enabled", false)
+                .build();
+
+        setup(Settings.EMPTY, new DynamicSgConfig(), settings);
+        
+        final List<String> indices = Arrays.asList("index", "index", "index");
+        final List<BytesArray> sources = Arrays.asList(new BytesArray("{\"a\":5}"), new BytesArray("{\"a\":\"not a number\"}"), new BytesArray("{\"a\":6}"));
+
+        try(final HttpClient httpClient = HttpClient.builder(clusterInfo.httpHost+":"+clusterInfo.httpPort)
+                .setBasicCredentials("admin", "admin").build()) {
+            Assert.assertTrue(httpClient.index("{\"a\":5}", "index", "type", true));
+            
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicReference<BitSet> asyncFailed = new AtomicReference<BitSet>();
+            httpClient.bulkAsync(indices, sources, "type", true, new HttpClient.BulkListener() {
+                
+                @Override
+                public void onResponse(BitSet failed) {
+                    asyncFailed.set(failed);
+                    latch.countDown();
+                }
+                
+                @Override
+                public void onFailure(Exception e) {
+                    latch.countDown();
+                }
+            });
+            
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+            Assert.assertNotNull(asyncFailed.get());
+            Assert.assertEquals(1, asyncFailed.get().cardinality());
+            Assert.assertTrue(asyncFailed.get().get(1));
+        }
+        
+        try(final HttpClient httpClient = HttpClient.builder("unknownhost:6654")
+                .setBasicCredentials("admin", "admin").build()) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicReference<Exception> asyncFailure = new AtomicReference<Exception>();
+            httpClient.bulkAsync(indices, sources, "type", false, new HttpClient.BulkListener() {
+                
+                @Override
+                public void onResponse(BitSet failed) {
+                    latch.countDown();
+                }
+                
+                @Override
+                public void onFailure(Exception e) {
+                    asyncFailure.set(e);
+                    latch.countDown();
+                }
+            });
+            
+            Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+            Assert.assertNotNull(asyncFailure.get());
+        }
+    }
+    
     @Test
     public void testSslConnection() throws Exception {
 